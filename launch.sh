@@ -0,0 +1,33 @@
+#!/bin/sh
+# Starts Spectral Layers from the IntelliJ build output.
+#
+#   ./launch.sh          normal start
+#   ./launch.sh --cds    start with an AppCDS archive. The first run records the
+#                        classes the app loads in build/spectral-layers.jsa and
+#                        later runs map them in instead of loading them again.
+#
+# CDS only archives classes that come from jar files, so the build output is
+# packed into build/spectral-layers.jar. The jar is only rebuilt when a class
+# changed, since a new jar makes the JVM throw the old archive away.
+#
+# Set JSON_JAR if the org.json jar is not in ~/Downloads, and JAVA_OPTS for
+# extra JVM options (for example -Dspectral.startupTiming=true).
+set -e
+cd "$(dirname "$0")"
+
+CLASSES="${CLASSES:-out/production/SpectralLayers}"
+JSON_JAR="${JSON_JAR:-$HOME/Downloads/json-20231013.jar}"
+JAR=build/spectral-layers.jar
+
+mkdir -p build
+if [ ! -f "$JAR" ] || [ -n "$(find "$CLASSES" -newer "$JAR" -print -quit)" ]; then
+    jar cf "$JAR" -C "$CLASSES" .
+fi
+
+CDS=""
+if [ "$1" = "--cds" ]; then
+    CDS="-XX:SharedArchiveFile=build/spectral-layers.jsa -XX:+AutoCreateSharedArchive"
+    shift
+fi
+
+exec java $CDS $JAVA_OPTS -cp "$JAR:$JSON_JAR" core.Main "$@"
@@ -0,0 +1,233 @@
+package core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * BatchGrader scores a whole folder of saved player drawings against a set of
+ * challenges without opening any windows. It is meant for classroom contests
+ * where thousands of files have to be graded at once.
+ *
+ * Folder layout:
+ *   challenges/star.json          the challenge files
+ *   submissions/star/alice.json   drawings for the "star" challenge, one
+ *                                 subfolder per challenge
+ *
+ * Usage:
+ *   java core.BatchGrader challenges/ submissions/ results.csv
+ * This writes results.csv and the leaderboard, results-leaderboard.csv.
+ *
+ * Submissions are read lazily from disk and handed to a fixed thread pool
+ * through a bounded queue, so only a few files are in memory at a time.
+ * Challenges are parsed once through ChallengeCache. Every result is written
+ * to the CSV as soon as it is ready, and only the top LEADERBOARD_SIZE
+ * entries per challenge are kept for the leaderboard, which is written to
+ * its own CSV and printed at the end.
+ * Latencies go into a fixed histogram, so memory use does not grow with
+ * the number of submissions.
+ */
+public class BatchGrader {
+    /** Number of best results kept per challenge for the leaderboard. */
+    public static final int LEADERBOARD_SIZE = 10;
+    private final File challengeDir;
+    private final int threads;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong graded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<String, PriorityQueue<Result>> leaderboards = new HashMap<>();
+
+    /** One graded submission. */
+    public record Result(String challenge, String submission, double score, long micros) {}
+
+    /**
+     * Creates a grader that looks up challenges in the given folder.
+     *
+     * @param challengeDir folder containing the challenge JSON files
+     * @param threads      number of worker threads used for parsing and scoring
+     */
+    public BatchGrader(File challengeDir, int threads) {
+        this.challengeDir = challengeDir;
+        this.threads = threads;
+    }
+
+    /**
+     * Grades every submission below the given folder and writes one CSV row
+     * per submission to the output file. The leaderboard goes next to it,
+     * see leaderboardFile().
+     *
+     * @param submissionDir folder with one subfolder of submissions per challenge
+     * @param csv           the CSV file to write
+     * @throws IOException if the folders cannot be listed or a CSV cannot be written
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public void grade(File submissionDir, File csv) throws IOException, InterruptedException {
+        // Small bounded queue: when it is full the reading thread grades the file itself,
+        // which stops it from listing further ahead than the workers can keep up with
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.nanoTime();
+        try (BufferedWriter out = Files.newBufferedWriter(csv.toPath());
+             Stream<Path> files = Files.walk(submissionDir.toPath())) {
+            out.write("challenge,submission,score,micros");
+            out.newLine();
+            files.filter(p -> p.toString().endsWith(".json") && Files.isRegularFile(p))
+                    .forEach(p -> pool.execute(() -> gradeOne(p, out)));
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (UncheckedIOException e) {
+            pool.shutdownNow();
+            throw e.getCause();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        writeLeaderboard(leaderboardFile(csv));
+        printReport(elapsed);
+    }
+
+    /**
+     * @param csv the results CSV passed to grade()
+     * @return the file the leaderboard is written to: results.csv becomes
+     * results-leaderboard.csv in the same folder
+     */
+    public static File leaderboardFile(File csv) {
+        String name = csv.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        return new File(csv.getAbsoluteFile().getParentFile(), base + "-leaderboard.csv");
+    }
+
+    /**
+     * Writes the best LEADERBOARD_SIZE results of every challenge as CSV:
+     * challenges in name order, ranked from the highest score down.
+     *
+     * @param file the CSV file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeLeaderboard(File file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath())) {
+            out.write("challenge,rank,submission,score");
+            out.newLine();
+            for (String challenge : getChallenges()) {
+                int rank = 1;
+                for (Result r : getLeaderboard(challenge)) {
+                    out.write(csv(challenge) + "," + rank++ + "," + csv(r.submission()) + ","
+                            + String.format("%.4f", r.score()));
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    private void gradeOne(Path submission, BufferedWriter out) {
+        String challenge = submission.getParent().getFileName().toString();
+        long t0 = System.nanoTime();
+        try {
+            List<Layer> target = ChallengeCache.load(new File(challengeDir, challenge + ".json"));
+            List<Layer> player = FileHandler.readLayers(submission.toFile());
+            double score = ChallengeScorer.compare(target, player, ChallengeScorer.MatchMode.OPTIMAL);
+            long micros = (System.nanoTime() - t0) / 1000;
+
+            Result result = new Result(challenge, submission.getFileName().toString(), score, micros);
+            synchronized (out) {
+                out.write(csv(result.challenge()) + "," + csv(result.submission()) + ","
+                        + String.format("%.4f", score) + "," + micros);
+                out.newLine();
+            }
+            recordLeader(result);
+            latencies.record(micros * 1000);
+            graded.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            System.err.println("Could not grade " + submission + ": " + e.getMessage());
+        }
+    }
+
+    // Keeps only the best results per challenge, lowest score at the head so it is evicted first
+    private void recordLeader(Result result) {
+        synchronized (leaderboards) {
+            PriorityQueue<Result> top = leaderboards.computeIfAbsent(result.challenge(),
+                    k -> new PriorityQueue<>((a, b) -> Double.compare(a.score(), b.score())));
+            top.add(result);
+            if (top.size() > LEADERBOARD_SIZE) top.poll();
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.contains(",") || value.contains("\"")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    /**
+     * @param challenge the challenge name (file name without .json)
+     * @return the best results for that challenge, highest score first
+     */
+    public List<Result> getLeaderboard(String challenge) {
+        synchronized (leaderboards) {
+            PriorityQueue<Result> top = leaderboards.get(challenge);
+            List<Result> list = (top == null) ? new ArrayList<>() : new ArrayList<>(top);
+            list.sort((a, b) -> Double.compare(b.score(), a.score()));
+            return list;
+        }
+    }
+
+    // Every challenge with at least one graded submission, in name order
+    private List<String> getChallenges() {
+        List<String> challenges;
+        synchronized (leaderboards) {
+            challenges = new ArrayList<>(leaderboards.keySet());
+        }
+        challenges.sort(null);
+        return challenges;
+    }
+
+    private void printReport(long elapsedNanos) {
+        long count = graded.get();
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Graded %d submissions (%d failed) in %.2f s, %.1f files/s%n",
+                count, failed.get(), seconds, count / Math.max(seconds, 1e-9));
+        System.out.printf("Latency per file: p50 %d ms, p95 %d ms, p99 %d ms%n",
+                latencies.percentile(0.50), latencies.percentile(0.95), latencies.percentile(0.99));
+
+        for (String challenge : getChallenges()) {
+            System.out.println();
+            System.out.println("Leaderboard for " + challenge + ":");
+            int rank = 1;
+            for (Result r : getLeaderboard(challenge)) {
+                System.out.printf("%3d. %-30s %5.1f%%%n", rank++, r.submission(), r.score() * 100);
+            }
+        }
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args challenge folder, submission folder, output CSV and an
+     *             optional thread count (defaults to the number of cores)
+     * @throws Exception if grading fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: java core.BatchGrader <challengeDir> <submissionDir> <results.csv> [threads]");
+            System.exit(1);
+        }
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        new BatchGrader(new File(args[0]), threads).grade(new File(args[1]), new File(args[2]));
+    }
+}
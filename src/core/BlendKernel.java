@@ -0,0 +1,24 @@
+package core;
+
+/**
+ * A BlendKernel implements one blend mode for the Renderer. Instead of
+ * being called once per pixel it blends a whole span (a run of pixels
+ * in one row), so each mode has its own tight loop that the JIT can
+ * compile and optimize on its own.
+ *
+ * Pixels are packed premultiplied ARGB (TYPE_INT_ARGB_PRE). Kernels are
+ * looked up by blend mode in BlendKernels.
+ */
+public interface BlendKernel {
+    /**
+     * Blends length source pixels into the destination, in place.
+     *
+     * @param dst     the backdrop pixels, overwritten with the result
+     * @param d       index of the first destination pixel
+     * @param src     the layer pixels
+     * @param s       index of the first source pixel
+     * @param length  number of pixels to blend
+     * @param opacity layer opacity from 0 to 255, applied to every source pixel
+     */
+    void blend(int[] dst, int d, int[] src, int s, int length, int opacity);
+}
@@ -0,0 +1,266 @@
+package core;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * BlendKernels is the registry that maps every BlendMode to the BlendKernel
+ * that implements it. All built-in modes are registered up front. A kernel
+ * can be replaced with register(), for example to try a faster version of
+ * a mode.
+ *
+ * Every built-in mode is a separable blend with Porter-Duff "source over"
+ * alpha, on premultiplied values:
+ *   co = cs * (1 - ab) + cb * (1 - as) + as * ab * B(Cb, Cs)
+ *   ao = as + ab * (1 - as)
+ * The kernels only differ in the last term, which is written out per mode
+ * in premultiplied form (see the *Mix methods) so most of them need no
+ * division.
+ *
+ * Each kernel is its own lambda with its own copy of the span loop. The mix
+ * helpers are static, so the JIT can inline them into that loop.
+ */
+public class BlendKernels {
+    private static final Map<BlendMode, BlendKernel> kernels = new EnumMap<>(BlendMode.class);
+
+    static {
+        register(BlendMode.NORMAL, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue; // nothing drawn here, keep base pixel
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int inv = 255 - as;
+                // Plain source over: the mix term ab * cs cancels with cs * (1 - ab)
+                dst[d] = ((as + mul(base >>> 24, inv)) << 24)
+                        | ((rs + mul((base >> 16) & 0xff, inv)) << 16)
+                        | ((gs + mul((base >> 8) & 0xff, inv)) << 8)
+                        | (bs + mul(base & 0xff, inv));
+            }
+        });
+        register(BlendMode.ADD, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, addMix(rs, as, (base >> 16) & 0xff, ab)),
+                        over(gs, as, (base >> 8) & 0xff, ab, addMix(gs, as, (base >> 8) & 0xff, ab)),
+                        over(bs, as, base & 0xff, ab, addMix(bs, as, base & 0xff, ab)));
+            }
+        });
+        register(BlendMode.MULTIPLY, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, mul(rs, (base >> 16) & 0xff)),
+                        over(gs, as, (base >> 8) & 0xff, ab, mul(gs, (base >> 8) & 0xff)),
+                        over(bs, as, base & 0xff, ab, mul(bs, base & 0xff)));
+            }
+        });
+        register(BlendMode.SUBTRACT, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, subtractMix(rs, as, (base >> 16) & 0xff, ab)),
+                        over(gs, as, (base >> 8) & 0xff, ab, subtractMix(gs, as, (base >> 8) & 0xff, ab)),
+                        over(bs, as, base & 0xff, ab, subtractMix(bs, as, base & 0xff, ab)));
+            }
+        });
+        register(BlendMode.SCREEN, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, screenMix(rs, as, (base >> 16) & 0xff, ab)),
+                        over(gs, as, (base >> 8) & 0xff, ab, screenMix(gs, as, (base >> 8) & 0xff, ab)),
+                        over(bs, as, base & 0xff, ab, screenMix(bs, as, base & 0xff, ab)));
+            }
+        });
+        register(BlendMode.OVERLAY, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, overlayMix(rs, as, (base >> 16) & 0xff, ab)),
+                        over(gs, as, (base >> 8) & 0xff, ab, overlayMix(gs, as, (base >> 8) & 0xff, ab)),
+                        over(bs, as, base & 0xff, ab, overlayMix(bs, as, base & 0xff, ab)));
+            }
+        });
+        register(BlendMode.DARKEN, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, Math.min(mul(as, (base >> 16) & 0xff), mul(ab, rs))),
+                        over(gs, as, (base >> 8) & 0xff, ab, Math.min(mul(as, (base >> 8) & 0xff), mul(ab, gs))),
+                        over(bs, as, base & 0xff, ab, Math.min(mul(as, base & 0xff), mul(ab, bs))));
+            }
+        });
+        register(BlendMode.LIGHTEN, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, Math.max(mul(as, (base >> 16) & 0xff), mul(ab, rs))),
+                        over(gs, as, (base >> 8) & 0xff, ab, Math.max(mul(as, (base >> 8) & 0xff), mul(ab, gs))),
+                        over(bs, as, base & 0xff, ab, Math.max(mul(as, base & 0xff), mul(ab, bs))));
+            }
+        });
+        register(BlendMode.DIFFERENCE, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, Math.abs(mul(as, (base >> 16) & 0xff) - mul(ab, rs))),
+                        over(gs, as, (base >> 8) & 0xff, ab, Math.abs(mul(as, (base >> 8) & 0xff) - mul(ab, gs))),
+                        over(bs, as, base & 0xff, ab, Math.abs(mul(as, base & 0xff) - mul(ab, bs))));
+            }
+        });
+        register(BlendMode.SOFT_LIGHT, (dst, d, src, s, length, opacity) -> {
+            for (int end = d + length; d < end; d++, s++) {
+                int top = src[s];
+                if (top == 0) continue;
+                int as = mul(top >>> 24, opacity);
+                if (as == 0) continue;
+                int rs = mul((top >> 16) & 0xff, opacity);
+                int gs = mul((top >> 8) & 0xff, opacity);
+                int bs = mul(top & 0xff, opacity);
+                int base = dst[d];
+                int ab = base >>> 24;
+                dst[d] = pack(as, ab,
+                        over(rs, as, (base >> 16) & 0xff, ab, softLightMix(rs, as, (base >> 16) & 0xff, ab)),
+                        over(gs, as, (base >> 8) & 0xff, ab, softLightMix(gs, as, (base >> 8) & 0xff, ab)),
+                        over(bs, as, base & 0xff, ab, softLightMix(bs, as, base & 0xff, ab)));
+            }
+        });
+    }
+
+    private BlendKernels() {}
+
+    /**
+     * @param mode a blend mode
+     * @return the kernel currently registered for it
+     */
+    public static BlendKernel get(BlendMode mode) {
+        return kernels.get(mode);
+    }
+
+    /**
+     * Registers the kernel used for a blend mode, replacing the previous one.
+     *
+     * @param mode   the blend mode
+     * @param kernel the kernel that implements it
+     */
+    public static void register(BlendMode mode, BlendKernel kernel) {
+        kernels.put(mode, kernel);
+    }
+
+    // a * b / 255, rounded, for values 0..255
+    static int mul(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+    // cs * (1 - ab) + cb * (1 - as) + mix, clamped to a channel
+    private static int over(int cs, int as, int cb, int ab, int mix) {
+        return Math.min(255, mul(cs, 255 - ab) + mul(cb, 255 - as) + mix);
+    }
+    private static int pack(int as, int ab, int r, int g, int b) {
+        return ((as + mul(ab, 255 - as)) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // as * ab * B(Cb, Cs) for each mode, with cs = as * Cs and cb = ab * Cb premultiplied
+
+    // B = min(1, Cb + Cs)
+    private static int addMix(int cs, int as, int cb, int ab) {
+        return Math.min(mul(as, ab), mul(as, cb) + mul(ab, cs));
+    }
+    // B = max(0, Cb - Cs)
+    private static int subtractMix(int cs, int as, int cb, int ab) {
+        return Math.max(0, mul(as, cb) - mul(ab, cs));
+    }
+    // B = Cb + Cs - Cb * Cs
+    private static int screenMix(int cs, int as, int cb, int ab) {
+        return Math.max(0, mul(as, cb) + mul(ab, cs) - mul(cs, cb));
+    }
+    // B = 2 Cs Cb when Cb <= 0.5, else 1 - 2 (1 - Cs)(1 - Cb)
+    private static int overlayMix(int cs, int as, int cb, int ab) {
+        if (2 * cb <= ab) return Math.min(255, 2 * mul(cs, cb));
+        return Math.max(0, mul(as, ab) - 2 * mul(ab - cb, as - cs));
+    }
+    // W3C soft light. Needs straight colors, so it is done in floating point
+    private static int softLightMix(int cs, int as, int cb, int ab) {
+        if (ab == 0) return 0;
+        double sc = cs / (double) as;
+        double bc = cb / (double) ab;
+        double result;
+        if (sc <= 0.5) {
+            result = bc - (1 - 2 * sc) * bc * (1 - bc);
+        } else {
+            double dd = (bc <= 0.25) ? ((16 * bc - 12) * bc + 4) * bc : Math.sqrt(bc);
+            result = bc + (2 * sc - 1) * (dd - bc);
+        }
+        return (int) Math.round(result * as * ab / 255.0);
+    }
+}
@@ -4,5 +4,11 @@ public enum BlendMode {
     NORMAL,
     ADD,
     MULTIPLY,
-    SUBTRACT
+    SUBTRACT,
+    SCREEN,
+    OVERLAY,
+    DARKEN,
+    LIGHTEN,
+    DIFFERENCE,
+    SOFT_LIGHT
 }
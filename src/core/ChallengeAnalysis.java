@@ -0,0 +1,113 @@
+package core;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChallengeAnalysis holds everything ChallengeWindow needs to know about a
+ * challenge, worked out once when the challenge is loaded instead of on
+ * every paint or hint:
+ *  - the rendered preview image
+ *  - the individual layers, with groups opened up
+ *  - the statistics the hints talk about: average opacity, the smallest
+ *    layer, the layer nearest the top-left corner, and how often each
+ *    blend mode is used
+ *
+ * A challenge never changes once loaded, so the analysis is immutable and
+ * can be shared. ChallengeCache keeps it next to the parsed file.
+ */
+public class ChallengeAnalysis {
+    private final List<Layer> layers;
+    private final List<Layer> flatLayers;
+    private final BufferedImage preview;
+    private final Map<BlendMode, Integer> blendModeCounts;
+    private final float averageOpacity;
+    private final Layer smallestLayer;
+    private final Layer topLeftLayer;
+
+    private ChallengeAnalysis(List<Layer> layers) {
+        this.layers = layers;
+        this.flatLayers = Collections.unmodifiableList(LayerGroup.flatten(layers));
+        this.preview = CompositeCache.render(layers, Renderer.WIDTH, Renderer.HEIGHT);
+
+        Map<BlendMode, Integer> counts = new EnumMap<>(BlendMode.class);
+        float opacitySum = 0;
+        Layer smallest = null;
+        Layer topLeft = null;
+        for (Layer l : flatLayers) {
+            counts.merge(l.getBlendMode(), 1, Integer::sum);
+            opacitySum += l.getOpacity();
+            Rectangle r = l.getShape();
+            if (smallest == null || area(r) < area(smallest.getShape())) smallest = l;
+            if (topLeft == null || r.x + r.y < topLeft.getShape().x + topLeft.getShape().y) topLeft = l;
+        }
+        this.blendModeCounts = Collections.unmodifiableMap(counts);
+        this.averageOpacity = flatLayers.isEmpty() ? 0 : opacitySum / flatLayers.size();
+        this.smallestLayer = smallest;
+        this.topLeftLayer = topLeft;
+    }
+
+    /**
+     * Analyzes a challenge. This renders the full canvas once, so it is
+     * best done when the challenge is loaded.
+     *
+     * @param layers the challenge layers, which may contain groups. Must not change afterwards
+     * @return the analysis
+     */
+    public static ChallengeAnalysis of(List<Layer> layers) {
+        return new ChallengeAnalysis(layers);
+    }
+
+    private static long area(Rectangle r) {
+        return (long) r.width * r.height;
+    }
+
+    /**
+     * @return the challenge layers as loaded, groups included
+     */
+    public List<Layer> getLayers() { return layers; }
+
+    /**
+     * @return every individual layer, with groups opened up, back to front
+     */
+    public List<Layer> getFlatLayers() { return flatLayers; }
+
+    /**
+     * @return the challenge rendered on the full canvas. Shared, do not modify
+     */
+    public BufferedImage getPreview() { return preview; }
+
+    /**
+     * @return how many layers use each blend mode. Modes that aren't used are left out
+     */
+    public Map<BlendMode, Integer> getBlendModeCounts() { return blendModeCounts; }
+
+    /**
+     * @return the average opacity over all layers, or 0 if there are none
+     */
+    public float getAverageOpacity() { return averageOpacity; }
+
+    /**
+     * @return the layer with the smallest area, or null if there are no layers
+     */
+    public Layer getSmallestLayer() { return smallestLayer; }
+
+    /**
+     * @return the layer whose corner is nearest the top-left of the canvas, or null if there are no layers
+     */
+    public Layer getTopLeftLayer() { return topLeftLayer; }
+
+    /**
+     * @return the blend modes used, most used first
+     */
+    public List<BlendMode> getBlendModesByUse() {
+        List<BlendMode> modes = new ArrayList<>(blendModeCounts.keySet());
+        modes.sort((a, b) -> blendModeCounts.get(b) - blendModeCounts.get(a));
+        return modes;
+    }
+}
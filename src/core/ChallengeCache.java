@@ -0,0 +1,139 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChallengeCache keeps recently parsed challenge files in memory so that
+ * reopening a challenge, or scoring many attempts against the same one,
+ * does not read and parse the JSON again.
+ *
+ * Entries are keyed by the file's canonical path and remember the size and
+ * last-modified time the file had when it was parsed. If either changes the
+ * entry is thrown away and the file is parsed again, so editing a challenge
+ * on disk is picked up on the next load.
+ *
+ * The cache is an LRU: once it holds MAX_ENTRIES challenges, the least
+ * recently used one is dropped.
+ *
+ * Each entry can also hold the ChallengeAnalysis of the challenge, which is
+ * made the first time analyze() is called for it.
+ */
+public class ChallengeCache {
+    /** Maximum number of parsed challenges kept in memory. */
+    public static final int MAX_ENTRIES = 16;
+
+    private static final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // One parsed challenge plus the file identity it was parsed from
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final List<Layer> layers;
+        ChallengeAnalysis analysis; // made on first use, guarded by cache
+
+        Entry(long size, long lastModified, List<Layer> layers) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.layers = layers;
+        }
+    }
+
+    private ChallengeCache() {}
+
+    /**
+     * Returns the layers of a challenge file, parsing it only if it is not
+     * cached yet or has changed on disk since it was cached.
+     *
+     * The returned list is shared between callers and cannot be modified.
+     * The layers inside it must be treated as read-only as well.
+     *
+     * @param file the challenge file to load
+     * @return an unmodifiable list of the challenge layers
+     * @throws IOException if the file cannot be read
+     */
+    public static List<Layer> load(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return entry.layers;
+            }
+        }
+
+        // Parse outside the lock so a slow file does not block other lookups
+        List<Layer> layers = Collections.unmodifiableList(FileHandler.readLayers(file));
+        synchronized (cache) {
+            cache.put(key, new Entry(size, lastModified, layers));
+        }
+        return layers;
+    }
+
+    /**
+     * Returns the analysis of a challenge file (preview image and hint
+     * statistics). Like load(), the work is only done once for as long as
+     * the file is cached and unchanged.
+     *
+     * @param file the challenge file to load
+     * @return the shared analysis of the challenge
+     * @throws IOException if the file cannot be read
+     */
+    public static ChallengeAnalysis analyze(File file) throws IOException {
+        List<Layer> layers = load(file);
+        String key = file.getCanonicalPath();
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.layers == layers && entry.analysis != null) return entry.analysis;
+        }
+
+        // Rendering the preview is the slow part, so it also happens outside the lock
+        ChallengeAnalysis analysis = ChallengeAnalysis.of(layers);
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.layers == layers) entry.analysis = analysis;
+        }
+        return analysis;
+    }
+
+    /**
+     * Drops the cached entry for a single file, if there is one.
+     *
+     * @param file the challenge file to forget
+     * @throws IOException if the canonical path cannot be resolved
+     */
+    public static void invalidate(File file) throws IOException {
+        synchronized (cache) {
+            cache.remove(file.getCanonicalPath());
+        }
+    }
+
+    /**
+     * Removes every cached challenge.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return how many challenges are currently cached
+     */
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package core;
 
 import java.awt.*;
+import java.util.Arrays;
 import java.util.List;
 /**
  * ChallengeScorer compares a player's drawing against the challenge drawing
@@ -17,8 +18,21 @@ import java.util.List;
  * The scoring uses smooth falloff functions rather than 100-0
  * which allows "Close enough" to receive high scores, and "slightly farther"
  * to get a decent score. Like a real grading system
+ *
+ * Layers can be paired in two ways (see MatchMode): strictly by list index,
+ * or by finding the best one-to-one assignment so that drawing the right
+ * layers in a different order is not punished.
  */
 public class ChallengeScorer {
+    /**
+     * How target and player layers are paired up before scoring.
+     * BY_INDEX compares layer i with layer i, OPTIMAL finds the pairing
+     * with the highest total score (Hungarian algorithm).
+     */
+    public enum MatchMode {
+        BY_INDEX, OPTIMAL
+    }
+
     /**
      * Big method for this class.
      * Compares the player's layers to the target layers and produces a score
@@ -35,29 +49,157 @@ public class ChallengeScorer {
      * @return a normalized similarity score from 0.0 to 1.0
      */
     public static double compare(List<Layer> target, List<Layer> player) {
+        // Groups are scored by the layers inside them
+        if (LayerGroup.containsGroups(target)) target = LayerGroup.flatten(target);
+        if (LayerGroup.containsGroups(player)) player = LayerGroup.flatten(player);
         if (player.isEmpty() || target.isEmpty()) return 0.0;
 
         int n = Math.min(target.size(), player.size());
         double totalScore = 0;
 
         for (int i = 0; i < n; i++) {
-            Layer t = target.get(i);
-            Layer p = player.get(i);
+            totalScore += layerScore(target.get(i), player.get(i));
+        }
 
-            double colorScore = colorSimilarity(t.getColor(), p.getColor());
-            double posScore   = positionSimilarity(t.getShape(), p.getShape());
-            double blendScore = (t.getBlendMode() == p.getBlendMode()) ? 1.0 : 0.0;
+        // Normalize by number of target layers
+        return totalScore / target.size();
+    }
+    /**
+     * Compares the two drawings using the given matching mode.
+     *
+     * With OPTIMAL, every target layer is paired with at most one player layer
+     * so that the summed layer score is as high as possible, regardless of
+     * the order the layers were drawn in. The total is divided by the larger
+     * of the two layer counts, so both missing layers and unmatched extra
+     * layers count as zero and pull the score down.
+     *
+     * @param target the list of layers that define the correct solution
+     * @param player the list of layers drawn by the user
+     * @param mode   how layers are paired before scoring
+     * @return a normalized similarity score from 0.0 to 1.0
+     */
+    public static double compare(List<Layer> target, List<Layer> player, MatchMode mode) {
+        if (mode == MatchMode.BY_INDEX) return compare(target, player);
+        if (LayerGroup.containsGroups(target)) target = LayerGroup.flatten(target);
+        if (LayerGroup.containsGroups(player)) player = LayerGroup.flatten(player);
+        if (player.isEmpty() || target.isEmpty()) return 0.0;
 
-            // Weighted layer score
-            double layerScore = (0.45 * colorScore) +
-                    (0.35 * posScore) +
-                    (0.20 * blendScore);
+        double[][] cost = costMatrix(target, player);
+        int[] match = assign(cost);
+        double totalScore = 0;
+        for (int i = 0; i < match.length; i++) {
+            totalScore += 1.0 - cost[i][match[i]];
+        }
+        return totalScore / Math.max(target.size(), player.size());
+    }
+    /**
+     * Builds the cost matrix for assign(): 1 - layerScore for every pair.
+     * Rows are the shorter of the two lists, since the solver needs no more
+     * rows than columns.
+     *
+     * @param target the target layers, without groups
+     * @param player the player's layers, without groups
+     * @return cost[i][j] for row layer i and column layer j
+     */
+    static double[][] costMatrix(List<Layer> target, List<Layer> player) {
+        boolean targetRows = target.size() <= player.size();
+        List<Layer> rows = targetRows ? target : player;
+        List<Layer> cols = targetRows ? player : target;
 
-            totalScore += layerScore;
+        double[][] cost = new double[rows.size()][cols.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            for (int j = 0; j < cols.size(); j++) {
+                Layer t = targetRows ? rows.get(i) : cols.get(j);
+                Layer p = targetRows ? cols.get(j) : rows.get(i);
+                cost[i][j] = 1.0 - layerScore(t, p);
+            }
         }
+        return cost;
+    }
+    /**
+     * Scores a single target/player layer pair using the weights described
+     * on compare().
+     *
+     * @param t the target layer
+     * @param p the player's layer
+     * @return the weighted layer score from 0.0 to 1.0
+     */
+    static double layerScore(Layer t, Layer p) {
+        double colorScore = colorSimilarity(t.getColor(), p.getColor());
+        double posScore   = positionSimilarity(t.getShape(), p.getShape());
+        double blendScore = (t.getBlendMode() == p.getBlendMode()) ? 1.0 : 0.0;
 
-        // Normalize by number of target layers
-        return totalScore / target.size();
+        // Weighted layer score
+        return (0.45 * colorScore) +
+                (0.35 * posScore) +
+                (0.20 * blendScore);
+    }
+    /**
+     * Hungarian algorithm (shortest augmenting path form, O(n^2 m)) for a
+     * rectangular cost matrix with no more rows than columns.
+     * Every row is assigned a distinct column so that the summed cost is minimal.
+     * ScorerBenchmark measures how it scales.
+     *
+     * @param cost cost[i][j] is the cost of assigning row i to column j
+     * @return for every row, the index of the column it was assigned to
+     */
+    static int[] assign(double[][] cost) {
+        int n = cost.length;
+        int m = cost[0].length;
+        // 1-based potentials and matching, index 0 is the virtual start column
+        double[] u = new double[n + 1];
+        double[] v = new double[m + 1];
+        int[] rowOfCol = new int[m + 1];
+        int[] way = new int[m + 1];
+        double[] minv = new double[m + 1];
+        boolean[] used = new boolean[m + 1];
+
+        for (int i = 1; i <= n; i++) {
+            rowOfCol[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, false);
+            do {
+                used[j0] = true;
+                int i0 = rowOfCol[j0];
+                double delta = Double.POSITIVE_INFINITY;
+                int j1 = 0;
+                double[] row = cost[i0 - 1];
+                for (int j = 1; j <= m; j++) {
+                    if (used[j]) continue;
+                    double cur = row[j - 1] - u[i0] - v[j];
+                    if (cur < minv[j]) {
+                        minv[j] = cur;
+                        way[j] = j0;
+                    }
+                    if (minv[j] < delta) {
+                        delta = minv[j];
+                        j1 = j;
+                    }
+                }
+                for (int j = 0; j <= m; j++) {
+                    if (used[j]) {
+                        u[rowOfCol[j]] += delta;
+                        v[j] -= delta;
+                    } else {
+                        minv[j] -= delta;
+                    }
+                }
+                j0 = j1;
+            } while (rowOfCol[j0] != 0);
+            // Walk the augmenting path back to the start column
+            do {
+                int j1 = way[j0];
+                rowOfCol[j0] = rowOfCol[j1];
+                j0 = j1;
+            } while (j0 != 0);
+        }
+
+        int[] match = new int[n];
+        for (int j = 1; j <= m; j++) {
+            if (rowOfCol[j] != 0) match[rowOfCol[j] - 1] = j - 1;
+        }
+        return match;
     }
 
     // Normal Falling off Function for Scoring, rather than pure 100 or 0
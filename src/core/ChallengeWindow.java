@@ -2,6 +2,9 @@ package core;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
 import java.util.List;
 /**
  * The ChallengeWindow displays a target set of layers that the user must try
@@ -10,11 +13,16 @@ import java.util.List;
  * matches the challenge. Also cheater mode once all hints are exhausted.
  *
  * Features:
- *  - Renders the challenge layers using the same Renderer as the main canvas that is view only.
+ *  - Shows the challenge rendered by the same Renderer as the main canvas, view only.
+ *    The image comes from the ChallengeAnalysis, so painting is just a copy.
  *  - Offers progressively revealing hints, followed by "cheater hints" that
- *    reveal exact layer details.
+ *    reveal exact layer details. Hint statistics also come from the analysis.
+ *  - Shows a live score meter that follows the player's edits (IncrementalScorer).
  *  - Contains a scoring button that compares the challenge against the user's
- *    current drawing using ChallengeScorer.
+ *    current drawing using ChallengeScorer, and reports a visual match from
+ *    PerceptualScorer next to it. The visual match renders both drawings, so
+ *    it is worked out in the background and filled in when ready. The verdict
+ *    ("Great match!" or "Keep trying") needs both scores to be high.
  *
  * This window is opened when the user clicks "Test your
  * Drawing Skills" from the toolbar.
@@ -23,7 +31,18 @@ public class ChallengeWindow extends JFrame {
 
     private JTextArea hintArea;
     private int hintIndex = 0;
-    private List<Layer> challengeLayers;
+    private final ChallengeAnalysis challenge;
+    private final List<Layer> challengeLayers;
+
+    /**
+     * Creates a new ChallengeWindow for the given layers, analyzing them first.
+     *
+     * @param challengeLayers the list of layers that define the challenge
+     * @param playerManager   the player's LayerManager, used for scoring
+     */
+    public ChallengeWindow(List<Layer> challengeLayers, LayerManager playerManager) {
+        this(ChallengeAnalysis.of(challengeLayers), playerManager);
+    }
 
     /**
      * Creates a new ChallengeWindow displaying the target layers for the user
@@ -32,23 +51,40 @@ public class ChallengeWindow extends JFrame {
      *  - A scrollable text area for hints.
      *  - Buttons to request more hints or check the user's accuracy.
      *
-     * @param challengeLayers the list of layers that define the challenge
-     * @param playerManager   the player's LayerManager, used for scoring
+     * @param challenge     the analyzed challenge, usually from ChallengeCache.analyze()
+     * @param playerManager the player's LayerManager, used for scoring
      */
-    public ChallengeWindow(List<Layer> challengeLayers, LayerManager playerManager) {
-        this.challengeLayers = challengeLayers;
+    public ChallengeWindow(ChallengeAnalysis challenge, LayerManager playerManager) {
+        this.challenge = challenge;
+        this.challengeLayers = challenge.getFlatLayers(); // hints talk about individual layers
 
         setTitle("Challenge Viewer");
         setSize(800, 600);
         setLayout(new BorderLayout());
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
 
-        // Preview Panel, try to match this
+        // Live score meter, updated while the player edits
+        JProgressBar liveScore = new JProgressBar(0, 100);
+        liveScore.setStringPainted(true);
+        liveScore.setString("Live score: --");
+        add(liveScore, BorderLayout.NORTH);
+        IncrementalScorer scorer = new IncrementalScorer(challenge.getLayers(), playerManager, score -> {
+            liveScore.setValue((int) (score * 100));
+            liveScore.setString("Live score: " + (int) (score * 100) + "%");
+        });
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                scorer.dispose();
+            }
+        });
+
+        // Preview Panel, try to match this. The challenge never changes, so this only copies the cached image
         JPanel preview = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
                 super.paintComponent(g);
-                Renderer r = new Renderer((Graphics2D) g);
-                r.draw(challengeLayers);
+                g.drawImage(challenge.getPreview(), 0, 0, null);
             }
         };
         add(preview, BorderLayout.CENTER);
@@ -72,10 +108,43 @@ public class ChallengeWindow extends JFrame {
         clearHints.addActionListener(e -> hintArea.setText(""));
         JButton checkButton = new JButton("Check My Drawing");
         checkButton.addActionListener(e -> {
-            double score = ChallengeScorer.compare(challengeLayers, playerManager.getLayers());
-            JOptionPane.showMessageDialog(this,
-                    score >= 0.85 ? "Great match! (" + (int)(score * 100) + "%)" :
-                            "Keep trying (" + (int)(score * 100) + "%)");
+            double score = ChallengeScorer.compare(challengeLayers, playerManager.getLayers(),
+                    ChallengeScorer.MatchMode.OPTIMAL);
+            // The verdict needs both scores, so it waits for the visual match
+            JLabel headline = new JLabel("Checking how it looks...");
+            JLabel visualLabel = new JLabel("Visual match: measuring...");
+            Object[] message = {headline, "Layer match: " + (int)(score * 100) + "%", visualLabel};
+            // Not modal, so the result shows at once and the visual match can be filled in later
+            JDialog dialog = new JOptionPane(message, JOptionPane.INFORMATION_MESSAGE).createDialog(this, "Check My Drawing");
+            dialog.setModal(false);
+
+            // How close it looks, no matter how the layers were built. Rendering both drawings
+            // takes a while, so it runs on a snapshot in the background
+            List<Layer> player = new ArrayList<>();
+            for (Layer l : playerManager.getLayers()) player.add(l.copy());
+            new SwingWorker<Double, Void>() {
+                @Override
+                protected Double doInBackground() {
+                    return PerceptualScorer.compare(challenge.getLayers(), player);
+                }
+
+                @Override
+                protected void done() {
+                    double overall = score;
+                    try {
+                        double visual = get();
+                        visualLabel.setText("Visual match: " + (int)(visual * 100) + "%");
+                        overall = Math.min(score, visual);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        visualLabel.setText("Visual match: unavailable");
+                    }
+                    // Great only if it is built right and looks right
+                    headline.setText(overall >= 0.85 ? "Great match!" : "Keep trying");
+                    dialog.pack();
+                }
+            }.execute();
+            dialog.setVisible(true);
         });
         bottom.add(nextHint);
         bottom.add(clearHints);
@@ -90,17 +159,21 @@ public class ChallengeWindow extends JFrame {
         StringBuilder sb = new StringBuilder();
 
         if (hintIndex <=  7) { // normal hints
-            Layer l = challengeLayers.get(Math.min(hintIndex - 1, total - 1));
-            Color c = l.getColor();
-            Rectangle r = l.getShape();
-
-            switch (hintIndex) {
+            if (total == 0 && hintIndex >= 2 && hintIndex <= 6) {
+                sb.append("Hint ").append(hintIndex).append(": This challenge is an empty canvas.\n");
+            } else switch (hintIndex) {
                 case 1 -> sb.append("Hint 1: There are ").append(total).append(" layers.\n");
-                case 2 -> sb.append("Hint 2: First layer color ≈ ").append(colorToString(c)).append("\n");
-                case 3 -> sb.append("Hint 3: One blend mode is ").append(l.getBlendMode()).append("\n");
-                case 4 -> sb.append("Hint 4: Top-left layer starts near (").append(r.x).append(", ").append(r.y).append(")\n");
-                case 5 -> sb.append("Hint 5: Smallest layer ≈ ").append(r.width).append("×").append(r.height).append("\n");
-                case 6 -> sb.append("Hint 6: Average opacity ≈ ").append(String.format("%.2f", l.getOpacity())).append("\n");
+                case 2 -> sb.append("Hint 2: First layer color ≈ ").append(colorToString(challengeLayers.get(0).getColor())).append("\n");
+                case 3 -> sb.append("Hint 3: Blend modes used: ").append(blendModeSummary()).append("\n");
+                case 4 -> {
+                    Rectangle r = challenge.getTopLeftLayer().getShape();
+                    sb.append("Hint 4: Top-left layer starts near (").append(r.x).append(", ").append(r.y).append(")\n");
+                }
+                case 5 -> {
+                    Rectangle r = challenge.getSmallestLayer().getShape();
+                    sb.append("Hint 5: Smallest layer ≈ ").append(r.width).append("×").append(r.height).append("\n");
+                }
+                case 6 -> sb.append("Hint 6: Average opacity ≈ ").append(String.format("%.2f", challenge.getAverageOpacity())).append("\n");
                 case 7 -> sb.append("Hint 7: Try overlapping layers to see blending!\n");
                 default -> sb.append("Final normal hint: focus on color & blend accuracy.\n");
             }
@@ -126,6 +199,15 @@ public class ChallengeWindow extends JFrame {
         hintArea.append("--------------------------\n");
         hintArea.setCaretPosition(hintArea.getDocument().getLength()); // auto-scroll
     }
+    // e.g. "MULTIPLY ×2, NORMAL ×1", most used first
+    private String blendModeSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (BlendMode mode : challenge.getBlendModesByUse()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(mode).append(" ×").append(challenge.getBlendModeCounts().get(mode));
+        }
+        return sb.toString();
+    }
     private String colorToString(Color c) {
         return "RGB(" + c.getRed() + "," + c.getGreen() + "," + c.getBlue() + ")";
     }
@@ -0,0 +1,255 @@
+package core;
+
+import javax.swing.*;
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * CollabClient connects a LayerManager to a CollabServer so the drawing is
+ * shared with other artists.
+ *
+ * Local edits are applied right away as usual. The client hears about
+ * them as LayerEdits, turns them into CollabDocument operations and sends
+ * everything collected during one frame as a single batch. Incoming commits
+ * are applied once per frame through LayerManager.applyExternalChange(), so
+ * a change to one layer only refreshes that layer. While the user is in the
+ * middle of a drag they are held back and applied on release.
+ *
+ * Each batch carries the last version this client had seen, and each commit
+ * the version the server gave it. The client keeps a copy of the drawing as
+ * the server has it (every commit applied, in order) next to its local
+ * operations that the server has not committed yet. When one of our own
+ * commits comes back, the canvas already shows it, so it only moves from
+ * the pending operations to the server copy. When someone else's commit
+ * comes back while we still have pending operations, the canvas is rebuilt
+ * as the server copy with our pending operations on top, which is exactly
+ * what the server will have once it commits them.
+ *
+ * Undo only covers edits made since the last change from someone else that
+ * touched the drawing, because such changes can move layers the old undo
+ * steps point at.
+ *
+ * All methods must be called on the EDT.
+ */
+public class CollabClient implements Closeable, LayerManager.EditListener {
+    private static final int FRAME_MILLIS = 16;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final LayerManager manager;
+    private final Runnable repaintCallback;
+    private final CollabDocument document;
+    private final Timer frameTimer;
+    private final ExecutorService writer;
+    private final int clientNumber;
+    // The drawing as the server has it, with every commit received so far
+    private final List<Layer> confirmedLayers = new ArrayList<>();
+    private final CollabDocument confirmed;
+    // Batches sent but not committed yet, oldest first. The server commits them in this order
+    private final ArrayDeque<List<CollabDocument.Op>> unacknowledged = new ArrayDeque<>();
+    // Operations made locally since the last batch was sent
+    private List<CollabDocument.Op> outgoing = new ArrayList<>();
+    // Commits received but not applied yet, filled by the reader thread
+    private final ConcurrentLinkedQueue<Commit> incoming = new ConcurrentLinkedQueue<>();
+    private long version;
+    private boolean closed = false;
+
+    private record Commit(long version, int author, List<CollabDocument.Op> ops) {}
+
+    private CollabClient(Socket socket, LayerManager manager, Runnable repaintCallback) throws IOException {
+        this.socket = socket;
+        this.manager = manager;
+        this.repaintCallback = repaintCallback;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // Replace whatever was on the canvas with the shared drawing
+        if (in.readByte() != CollabServer.WELCOME) throw new IOException("Not a collaboration server");
+        clientNumber = in.readInt();
+        document = new CollabDocument(clientNumber);
+        confirmed = new CollabDocument(clientNumber);
+        version = in.readLong();
+        List<Long> ids = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) ids.add(in.readLong());
+        List<Layer> shared = LayerCodec.readLayers(in);
+        document.reset(ids);
+        confirmed.reset(new ArrayList<>(ids));
+        for (Layer l : shared) confirmedLayers.add(l.copy());
+        manager.applyExternalChange(layers -> {
+            LayerEdit edit = new LayerEdit();
+            edit.add(0, new ArrayList<>(layers), shared);
+            layers.clear();
+            layers.addAll(shared);
+            return edit;
+        });
+        manager.addEditListener(this);
+
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "collab-send");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread reader = new Thread(() -> readLoop(in), "collab-receive");
+        reader.setDaemon(true);
+        reader.start();
+
+        frameTimer = new Timer(FRAME_MILLIS, e -> onFrame());
+        frameTimer.setCoalesce(true);
+        frameTimer.start();
+        repaintCallback.run();
+    }
+
+    /**
+     * Joins a collaboration session. The canvas is replaced by the shared
+     * drawing.
+     *
+     * @param host            where the CollabServer runs
+     * @param port            its port
+     * @param manager         the LayerManager to share
+     * @param repaintCallback called after changes from others were applied
+     * @return the connected client; close it to leave the session
+     * @throws IOException if the server cannot be reached
+     */
+    public static CollabClient connect(String host, int port, LayerManager manager, Runnable repaintCallback) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        try {
+            return new CollabClient(socket, manager, repaintCallback);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Collects a local edit to send with the next batch.
+     */
+    @Override
+    public void editApplied(LayerEdit edit) {
+        outgoing.addAll(document.toOps(edit));
+    }
+
+    // Once per frame: send what was done locally, then apply what came in
+    private void onFrame() {
+        if (!outgoing.isEmpty()) send();
+        if (manager.isGestureActive()) return;
+        boolean foreign = false;
+        Commit commit;
+        while ((commit = incoming.poll()) != null) {
+            version = commit.version();
+            confirmed.apply(commit.ops(), confirmedLayers);
+            if (commit.author() == clientNumber) {
+                // Already on the canvas since we made it
+                unacknowledged.poll();
+            } else if (unacknowledged.isEmpty() && outgoing.isEmpty()) {
+                // Nothing of ours pending, so the canvas matches the server copy and can take the commit as it is
+                List<CollabDocument.Op> ops = commit.ops();
+                manager.applyExternalChange(layers -> document.apply(ops, layers));
+                foreign = true;
+            } else {
+                manager.applyExternalChange(this::rebase);
+                foreign = true;
+            }
+        }
+        if (foreign) repaintCallback.run();
+    }
+
+    // Makes the canvas the server copy plus our pending operations, changing only the layers that differ
+    private LayerEdit rebase(List<Layer> layers) {
+        List<Layer> rebuilt = new ArrayList<>(confirmedLayers.size());
+        for (Layer l : confirmedLayers) rebuilt.add(l.copy());
+        CollabDocument scratch = new CollabDocument(clientNumber);
+        scratch.reset(new ArrayList<>(confirmed.ids()));
+        for (List<CollabDocument.Op> batch : unacknowledged) scratch.apply(batch, rebuilt);
+        scratch.apply(outgoing, rebuilt);
+        document.reset(scratch.ids());
+
+        int start = 0;
+        int oldEnd = layers.size();
+        int newEnd = rebuilt.size();
+        while (start < oldEnd && start < newEnd && layers.get(start).sameContent(rebuilt.get(start))) start++;
+        while (oldEnd > start && newEnd > start && layers.get(oldEnd - 1).sameContent(rebuilt.get(newEnd - 1))) {
+            oldEnd--;
+            newEnd--;
+        }
+        LayerEdit edit = new LayerEdit();
+        if (start == oldEnd && start == newEnd) return edit;
+        List<Layer> removed = new ArrayList<>(layers.subList(start, oldEnd));
+        List<Layer> inserted = rebuilt.subList(start, newEnd);
+        layers.subList(start, oldEnd).clear();
+        layers.addAll(start, inserted);
+        edit.add(start, removed, new ArrayList<>(inserted));
+        return edit;
+    }
+
+    private void send() {
+        List<CollabDocument.Op> batch = outgoing;
+        outgoing = new ArrayList<>();
+        unacknowledged.add(batch);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream msg = new DataOutputStream(bytes);
+            msg.writeByte(CollabServer.BATCH);
+            msg.writeLong(version);
+            CollabDocument.writeOps(msg, batch);
+            byte[] data = bytes.toByteArray();
+            writer.execute(() -> {
+                try {
+                    out.write(data);
+                    out.flush();
+                } catch (IOException e) {
+                    SwingUtilities.invokeLater(this::close);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace(); // writing to a byte array doesn't fail
+        }
+    }
+
+    private void readLoop(DataInputStream in) {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type != CollabServer.COMMIT) throw new IOException("Unexpected message " + type);
+                long commitVersion = in.readLong();
+                int author = in.readInt();
+                incoming.add(new Commit(commitVersion, author, CollabDocument.readOps(in)));
+            }
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(this::close);
+        }
+    }
+
+    /**
+     * @return the version of the last commit applied to the canvas
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * @return true once the session has ended, by close() or a lost connection
+     */
+    public boolean isClosed() { return closed; }
+
+    /**
+     * Leaves the session. The canvas keeps the drawing as it is now.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        manager.removeEditListener(this);
+        frameTimer.stop();
+        writer.shutdown();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
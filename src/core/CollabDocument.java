@@ -0,0 +1,169 @@
+package core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CollabDocument is the shared model behind collaborative editing. It gives
+ * every layer a stable id, so edits can name the layer they change instead of
+ * its position in the list, which may already be different for the other
+ * artists by the time the edit arrives.
+ *
+ * Edits travel as small operations:
+ *  - SET id layer:           replace the layer with that id
+ *  - INSERT id anchor layer: put a new layer directly above the anchor layer
+ *                            (anchor BOTTOM means at the very bottom)
+ *  - DELETE id:              remove the layer with that id
+ *
+ * The server puts all edits in one order and every client ends up with the
+ * result of applying them in that order (see CollabClient). Conflicts are
+ * settled by that order with these rules, so everyone ends up with the
+ * same drawing:
+ *  - two SETs of one layer: the later one wins
+ *  - SET or DELETE of a layer that was deleted: ignored
+ *  - INSERT above a layer that was deleted: goes on top
+ *  - an edit that is already in effect: nothing happens, so it costs no
+ *    repaint
+ *
+ * Only ids are kept here; the layers themselves live in the list passed to
+ * apply(), which is the LayerManager's list on a client and the server's
+ * copy of the drawing on the server.
+ */
+class CollabDocument {
+    static final byte SET = 0, INSERT = 1, DELETE = 2;
+    /** Anchor meaning "below every other layer". Real ids are never 0. */
+    static final long BOTTOM = 0;
+
+    /**
+     * One operation. Layer is null for DELETE, anchor is only used by INSERT.
+     */
+    record Op(byte kind, long id, long anchor, Layer layer) {}
+
+    // Id of each layer, in the same order as the layer list
+    private final List<Long> ids = new ArrayList<>();
+    private final int owner;
+    private int nextId = 0;
+
+    /**
+     * @param owner the client number, used as the high half of new ids so two
+     *              clients never make the same id. The server uses 0
+     */
+    CollabDocument(int owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Gives fresh ids to a whole list of layers, for example when the server
+     * starts or a client receives the drawing on joining.
+     */
+    void reset(List<Long> newIds) {
+        ids.clear();
+        ids.addAll(newIds);
+    }
+
+    List<Long> ids() { return ids; }
+
+    long newId() {
+        return ((long) owner << 32) | ++nextId;
+    }
+
+    /**
+     * Applies operations to the list in order, following the conflict rules
+     * above.
+     *
+     * @param ops    the operations to apply
+     * @param layers the layers matching the ids; changed in place
+     * @return what changed, for change notifications. The layers in it are the live ones
+     */
+    LayerEdit apply(List<Op> ops, List<Layer> layers) {
+        LayerEdit edit = new LayerEdit();
+        for (Op op : ops) {
+            int i = ids.indexOf(op.id());
+            switch (op.kind()) {
+                case SET -> {
+                    if (i < 0 || layers.get(i).sameContent(op.layer())) continue;
+                    Layer before = layers.set(i, op.layer().copy());
+                    edit.add(i, List.of(before), List.of(layers.get(i)));
+                }
+                case DELETE -> {
+                    if (i < 0) continue;
+                    ids.remove(i);
+                    edit.add(i, List.of(layers.remove(i)), List.of());
+                }
+                case INSERT -> {
+                    int anchor = (op.anchor() == BOTTOM) ? -1 : ids.indexOf(op.anchor());
+                    if (i >= 0) {
+                        // Seen before: nothing to do if it is already in place, otherwise move it
+                        if (anchor + 1 == i && layers.get(i).sameContent(op.layer())) continue;
+                        ids.remove(i);
+                        edit.add(i, List.of(layers.remove(i)), List.of());
+                        if (anchor > i) anchor--;
+                    }
+                    int at = (op.anchor() != BOTTOM && anchor < 0) ? layers.size() : anchor + 1;
+                    Layer layer = op.layer().copy();
+                    ids.add(at, op.id());
+                    layers.add(at, layer);
+                    edit.add(at, List.of(), List.of(layer));
+                }
+                default -> throw new IllegalArgumentException("Unknown operation " + op.kind());
+            }
+        }
+        return edit;
+    }
+
+    /**
+     * Turns a local LayerEdit into operations and updates the ids to match.
+     * A splice that swaps one layer for one layer becomes a SET, so the layer
+     * keeps its id; anything else becomes DELETEs followed by INSERTs.
+     *
+     * @param edit an edit that was just made to the matching layer list
+     * @return the operations to send
+     */
+    List<Op> toOps(LayerEdit edit) {
+        List<Op> ops = new ArrayList<>();
+        for (LayerEdit.Splice s : edit.splices()) {
+            int index = s.index();
+            if (s.removed().size() == 1 && s.inserted().size() == 1) {
+                ops.add(new Op(SET, ids.get(index), BOTTOM, s.inserted().get(0).copy()));
+                continue;
+            }
+            for (int k = 0; k < s.removed().size(); k++) {
+                ops.add(new Op(DELETE, ids.remove(index), BOTTOM, null));
+            }
+            long anchor = (index == 0) ? BOTTOM : ids.get(index - 1);
+            for (int k = 0; k < s.inserted().size(); k++) {
+                long id = newId();
+                ids.add(index + k, id);
+                ops.add(new Op(INSERT, id, anchor, s.inserted().get(k).copy()));
+                anchor = id;
+            }
+        }
+        return ops;
+    }
+
+    static void writeOps(DataOutputStream out, List<Op> ops) throws IOException {
+        out.writeInt(ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.kind());
+            out.writeLong(op.id());
+            if (op.kind() == INSERT) out.writeLong(op.anchor());
+            if (op.kind() != DELETE) LayerCodec.writeLayer(out, op.layer());
+        }
+    }
+
+    static List<Op> readOps(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Op> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.readByte();
+            long id = in.readLong();
+            long anchor = (kind == INSERT) ? in.readLong() : BOTTOM;
+            Layer layer = (kind != DELETE) ? LayerCodec.readLayer(in) : null;
+            ops.add(new Op(kind, id, anchor, layer));
+        }
+        return ops;
+    }
+}
@@ -0,0 +1,243 @@
+package core;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * CollabServer lets several artists edit one drawing at the same time. It
+ * holds the shared copy of the drawing and relays every edit to everyone.
+ *
+ * Clients (CollabClient) send batches of CollabDocument operations. The
+ * server applies each batch to its copy, gives it the next version number
+ * and sends it to every client, including the one that made it. That one
+ * order is what settles conflicts; see CollabDocument for the rules.
+ *
+ * Messages are binary (DataOutputStream):
+ *  - WELCOME, server to a new client: client number, version, then the ids
+ *    and layers of the whole drawing
+ *  - BATCH, client to server: the last version the client had seen, then
+ *    the operations
+ *  - COMMIT, server to all: version, the client that made it, operations
+ *
+ * Every client has its own writer thread fed by a bounded queue, so a slow
+ * client cannot hold up commits for the others. A client that falls
+ * OUTBOX_LIMIT messages behind is disconnected.
+ *
+ * Run it on its own with
+ *   java core.CollabServer [port] [file] [bindAddress]
+ * By default it listens on localhost only. Pass 0.0.0.0 as the address to
+ * let other machines join. There is no authentication, so only do that on
+ * a network you trust.
+ */
+public class CollabServer implements Closeable {
+    public static final int DEFAULT_PORT = 5150;
+    static final byte WELCOME = 0, BATCH = 1, COMMIT = 2;
+    /** Most messages waiting to be sent to one client before it is dropped. */
+    static final int OUTBOX_LIMIT = 1024;
+
+    private final ServerSocket serverSocket;
+    // The shared drawing and everyone connected, guarded by this
+    private final List<Layer> layers = new ArrayList<>();
+    private final CollabDocument document = new CollabDocument(0);
+    private final List<Client> clients = new ArrayList<>();
+    private long version = 0;
+    private int nextClient = 0;
+    private long concurrentBatches = 0;
+
+    // One connected client. Messages are queued and written by the client's own thread
+    private static final class Client {
+        final Socket socket;
+        final BlockingQueue<byte[]> outbox = new ArrayBlockingQueue<>(OUTBOX_LIMIT);
+        final Thread writer;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writer = new Thread(() -> writeLoop(out), "collab-send");
+            writer.setDaemon(true);
+        }
+
+        // Queues a message; false if the client is too far behind to take it
+        boolean send(byte[] message) {
+            return outbox.offer(message);
+        }
+
+        private void writeLoop(DataOutputStream out) {
+            try {
+                while (true) {
+                    out.write(outbox.take());
+                    if (outbox.isEmpty()) out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                disconnect();
+            }
+        }
+
+        // Ends the connection; the reader thread then sees the closed socket and cleans up
+        void disconnect() {
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Starts a server on localhost.
+     *
+     * @param port    the TCP port, 0 for any free port
+     * @param initial the drawing to start from; it is copied
+     * @throws IOException if the port cannot be opened
+     */
+    public CollabServer(int port, List<Layer> initial) throws IOException {
+        this(port, initial, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Starts a server on the given address.
+     *
+     * @param port        the TCP port, 0 for any free port
+     * @param initial     the drawing to start from; it is copied
+     * @param bindAddress the address to listen on
+     * @throws IOException if the port cannot be opened
+     */
+    public CollabServer(int port, List<Layer> initial, InetAddress bindAddress) throws IOException {
+        List<Long> ids = new ArrayList<>(initial.size());
+        for (Layer l : initial) {
+            layers.add(l.copy());
+            ids.add(document.newId());
+        }
+        document.reset(ids);
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        Thread acceptor = new Thread(this::acceptLoop, "collab-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() { return serverSocket.getLocalPort(); }
+
+    /**
+     * @return how many batches were made without seeing every earlier commit,
+     * i.e. had to be settled by the conflict rules
+     */
+    public synchronized long getConcurrentBatches() { return concurrentBatches; }
+
+    /**
+     * @return the version of the latest commit
+     */
+    public synchronized long getVersion() { return version; }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true); // batches are small, send them right away
+                Thread reader = new Thread(() -> serve(socket), "collab-client");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Client client = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            client = new Client(socket);
+            int id;
+            synchronized (this) {
+                id = ++nextClient;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream welcome = new DataOutputStream(bytes);
+                welcome.writeByte(WELCOME);
+                welcome.writeInt(id);
+                welcome.writeLong(version);
+                welcome.writeInt(layers.size());
+                for (long layerId : document.ids()) welcome.writeLong(layerId);
+                LayerCodec.writeLayers(welcome, layers);
+                client.send(bytes.toByteArray());
+                clients.add(client);
+            }
+            client.writer.start();
+            while (true) {
+                byte type = in.readByte();
+                if (type != BATCH) throw new IOException("Unexpected message " + type);
+                long seen = in.readLong();
+                commit(id, seen, CollabDocument.readOps(in));
+            }
+        } catch (EOFException e) {
+            // client left
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) e.printStackTrace();
+        } finally {
+            if (client != null) {
+                synchronized (this) {
+                    clients.remove(client);
+                }
+                client.disconnect();
+            }
+        }
+    }
+
+    // Orders the batch after everything before it and sends it to everyone
+    private synchronized void commit(int clientId, long seen, List<CollabDocument.Op> ops) throws IOException {
+        if (seen < version) concurrentBatches++;
+        document.apply(ops, layers);
+        version++;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream msg = new DataOutputStream(bytes);
+        msg.writeByte(COMMIT);
+        msg.writeLong(version);
+        msg.writeInt(clientId);
+        CollabDocument.writeOps(msg, ops);
+        byte[] data = bytes.toByteArray();
+
+        for (Client c : new ArrayList<>(clients)) {
+            if (!c.send(data)) {
+                // Too far behind to catch up, drop it
+                clients.remove(c);
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients and disconnects everyone.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (this) {
+            for (Client c : clients) c.disconnect();
+            clients.clear();
+        }
+    }
+
+    /**
+     * Runs a server from the command line until it is killed.
+     *
+     * @param args [port] [drawing.json to start from] [address to listen on]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        List<Layer> initial = (args.length > 1) ? FileHandler.readLayers(new File(args[1])) : List.of();
+        InetAddress address = (args.length > 2) ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+        CollabServer server = new CollabServer(port, initial, address);
+        System.out.println("Collaboration server on " + address.getHostAddress() + ":" + server.getPort());
+        Thread.currentThread().join();
+    }
+}
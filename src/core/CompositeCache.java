@@ -0,0 +1,198 @@
+package core;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompositeCache remembers finished renders so that a drawing which looks
+ * the same is only composited once, wherever it is shown: the main canvas,
+ * the challenge preview, thumbnails, scoring and the render service all go
+ * through render() here.
+ *
+ * Renders are looked up by what is in them, not by which list they came
+ * from: the key is a hash of every layer's contentHash() plus the output
+ * size, so two copies of a drawing share one image, and undoing back to
+ * an earlier state finds that state's image again. Hashes can collide, so
+ * each entry also keeps copies of the layers it was rendered from and is
+ * only used if every one of them is sameContent() as the layer asked for.
+ *
+ * The cache is an LRU bounded by the bytes of the images it holds
+ * (DEFAULT_BUDGET, see setBudget()). Images are held through soft
+ * references as well, so when memory runs low the garbage collector can
+ * take them back before the budget is reached. Two threads asking for the
+ * same render at the same time share one rendering.
+ *
+ * Images returned from here are shared and must not be modified.
+ */
+public class CompositeCache {
+    /** Default for the most image bytes kept, about 32 full-canvas renders. */
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    private static final Map<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    // Images the garbage collector has cleared, to be taken out of cache
+    private static final ReferenceQueue<BufferedImage> cleared = new ReferenceQueue<>();
+    // Renders in progress, so the same one is not started twice
+    private static final Map<Key, Pending> rendering = new ConcurrentHashMap<>();
+    private static long budget = DEFAULT_BUDGET;
+    private static long bytes = 0; // guarded by cache
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private record Key(long hash, int layerCount, int width, int height) {}
+
+    // A render in progress and copies of the layers it is made from
+    private record Pending(List<Layer> layers, CompletableFuture<BufferedImage> image) {}
+
+    // One cached render and copies of the layers it was made from
+    private static class Entry extends SoftReference<BufferedImage> {
+        final Key key;
+        final List<Layer> layers;
+        final long size;
+
+        Entry(Key key, List<Layer> layers, BufferedImage image) {
+            super(image, cleared);
+            this.key = key;
+            this.layers = layers;
+            this.size = (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    private CompositeCache() {}
+
+    /**
+     * Same as Renderer.render(), but returns the cached image if this
+     * drawing was already rendered at this size.
+     *
+     * @param layers the layers to render, in order
+     * @param width  width of the output image in pixels
+     * @param height height of the output image in pixels
+     * @return the composited image. Shared, do not modify
+     */
+    public static BufferedImage render(List<Layer> layers, int width, int height) {
+        long hash = 1;
+        for (Layer layer : layers) hash = Layer.mix(hash, layer.contentHash());
+        Key key = new Key(hash, layers.size(), width, height);
+
+        BufferedImage image = lookup(key, layers);
+        if (image != null) {
+            hits.incrementAndGet();
+            return image;
+        }
+        // Copied before rendering, so a change made while rendering is not mistaken for the render's content
+        List<Layer> snapshot = new ArrayList<>(layers.size());
+        for (Layer layer : layers) snapshot.add(layer.copy());
+        Pending mine = new Pending(snapshot, new CompletableFuture<>());
+        Pending running = rendering.putIfAbsent(key, mine);
+        if (running != null && Layer.sameContent(running.layers(), layers)) {
+            // Someone is rendering this right now, wait for theirs
+            hits.incrementAndGet();
+            return running.image().join();
+        }
+        misses.incrementAndGet();
+        if (running != null) {
+            // A different drawing with the same hash is being rendered; render this one without sharing
+            image = Renderer.render(layers, width, height);
+            store(key, snapshot, image);
+            return image;
+        }
+        try {
+            image = Renderer.render(layers, width, height);
+            store(key, snapshot, image);
+            mine.image().complete(image);
+            return image;
+        } catch (RuntimeException | Error e) {
+            mine.image().completeExceptionally(e);
+            throw e;
+        } finally {
+            rendering.remove(key);
+        }
+    }
+
+    private static BufferedImage lookup(Key key, List<Layer> layers) {
+        synchronized (cache) {
+            purgeCleared();
+            Entry entry = cache.get(key);
+            if (entry == null || !Layer.sameContent(entry.layers, layers)) return null;
+            return entry.get();
+        }
+    }
+
+    private static void store(Key key, List<Layer> layers, BufferedImage image) {
+        Entry entry = new Entry(key, layers, image);
+        synchronized (cache) {
+            if (entry.size > budget) return;
+            Entry old = cache.put(key, entry);
+            if (old != null) bytes -= old.size;
+            bytes += entry.size;
+            // Drop least recently used images until the new one fits
+            Iterator<Entry> eldest = cache.values().iterator();
+            while (bytes > budget && eldest.hasNext()) {
+                Entry e = eldest.next();
+                eldest.remove();
+                bytes -= e.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Takes out entries whose image the garbage collector reclaimed. Caller holds the cache lock
+    private static void purgeCleared() {
+        Entry e;
+        while ((e = (Entry) cleared.poll()) != null) {
+            if (cache.get(e.key) == e) {
+                cache.remove(e.key);
+                bytes -= e.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Sets how many bytes of images may be kept, dropping the least
+     * recently used ones if the cache is already larger.
+     */
+    public static void setBudget(long maxBytes) {
+        synchronized (cache) {
+            budget = maxBytes;
+            Iterator<Entry> eldest = cache.values().iterator();
+            while (bytes > budget && eldest.hasNext()) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forgets every cached image. The counters keep running.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    /** @return how many renders were answered from the cache */
+    public static long getHits() { return hits.get(); }
+
+    /** @return how many renders had to be composited */
+    public static long getMisses() { return misses.get(); }
+
+    /** @return how many images were dropped, for the budget or low memory */
+    public static long getEvictions() { return evictions.get(); }
+
+    /** @return bytes of images held right now */
+    public static long getBytes() {
+        synchronized (cache) {
+            purgeCleared();
+            return bytes;
+        }
+    }
+}
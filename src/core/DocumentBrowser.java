@@ -0,0 +1,193 @@
+package core;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The DocumentBrowser is a gallery of every saved document and challenge
+ * (.json file) in a folder, shown as thumbnails.
+ *
+ * Thumbnails come from the ThumbnailCache and are only requested for the
+ * cells the list actually paints, so scrolling through a big folder loads
+ * them as they come into view. Loading happens on background threads,
+ * newest request first, so the cells the user is looking at now are
+ * filled in before ones that were scrolled past.
+ *
+ * Double-clicking a thumbnail (or "Open") loads the document into the
+ * editor; "Open as Challenge" opens it in a ChallengeWindow instead.
+ */
+public class DocumentBrowser extends JFrame {
+    private static final int CELL_PADDING = 12;
+
+    private final JList<File> list;
+    // Thumbnails loaded so far and files already queued, only touched on the EDT
+    private final Map<File, Icon> thumbnails = new HashMap<>();
+    private final Set<File> requested = new HashSet<>();
+    private final ExecutorService loader;
+    private final Icon placeholder = new EmptyIcon(new Color(230, 230, 230));
+    private final Icon broken = new EmptyIcon(new Color(240, 200, 200));
+
+    /**
+     * Opens a browser window for the given folder.
+     *
+     * @param folder          the folder whose .json files are shown
+     * @param manager         the editor's LayerManager, which receives opened documents
+     * @param repaintCallback called after a document is opened, to refresh the canvas
+     */
+    public DocumentBrowser(File folder, LayerManager manager, Runnable repaintCallback) {
+        setTitle("Browse " + folder.getName());
+        setSize(820, 600);
+        setLayout(new BorderLayout());
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        File[] files = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".json"));
+        if (files == null) files = new File[0];
+        Arrays.sort(files, Comparator.comparing(f -> f.getName().toLowerCase()));
+
+        // Newest request first: the last cells painted are the ones on screen now
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        loader = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<>() {
+                    @Override
+                    public boolean offer(Runnable r) {
+                        return offerFirst(r);
+                    }
+                },
+                r -> {
+                    Thread t = new Thread(r, "thumbnails");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        list = new JList<>(files);
+        list.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        list.setVisibleRowCount(-1);
+        // A fixed cell size stops the list from rendering every cell just to measure it
+        list.setFixedCellWidth(ThumbnailCache.WIDTH + CELL_PADDING);
+        list.setFixedCellHeight(ThumbnailCache.HEIGHT + CELL_PADDING + 20);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(l, value, index, isSelected, cellHasFocus);
+                File file = (File) value;
+                setText(file.getName());
+                setIcon(thumbnailFor(file));
+                setVerticalTextPosition(SwingConstants.BOTTOM);
+                setHorizontalTextPosition(SwingConstants.CENTER);
+                setHorizontalAlignment(SwingConstants.CENTER);
+                return this;
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) openSelected(manager, repaintCallback);
+            }
+        });
+        add(new JScrollPane(list), BorderLayout.CENTER);
+
+        JPanel bottom = new JPanel(new FlowLayout());
+        JButton openButton = new JButton("Open");
+        openButton.addActionListener(e -> openSelected(manager, repaintCallback));
+        JButton challengeButton = new JButton("Open as Challenge");
+        challengeButton.addActionListener(e -> openSelectedAsChallenge(manager));
+        bottom.add(new JLabel(files.length + " documents"));
+        bottom.add(openButton);
+        bottom.add(challengeButton);
+        add(bottom, BorderLayout.SOUTH);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                loader.shutdownNow();
+                ThumbnailCache.saveIndex();
+            }
+        });
+
+        setVisible(true);
+    }
+
+    // Returns the thumbnail if it is loaded, otherwise queues it and returns the placeholder
+    private Icon thumbnailFor(File file) {
+        Icon icon = thumbnails.get(file);
+        if (icon != null) return icon;
+        if (!loader.isShutdown() && requested.add(file)) {
+            loader.execute(() -> {
+                Icon loaded;
+                try {
+                    BufferedImage image = ThumbnailCache.get(file);
+                    loaded = new ImageIcon(image);
+                } catch (Exception e) {
+                    loaded = broken; // not a layer document, or unreadable
+                }
+                Icon result = loaded;
+                SwingUtilities.invokeLater(() -> showThumbnail(file, result));
+            });
+        }
+        return placeholder;
+    }
+    private void showThumbnail(File file, Icon icon) {
+        thumbnails.put(file, icon);
+        ListModel<File> model = list.getModel();
+        for (int i = list.getFirstVisibleIndex(); i >= 0 && i <= list.getLastVisibleIndex(); i++) {
+            if (model.getElementAt(i).equals(file)) {
+                Rectangle cell = list.getCellBounds(i, i);
+                if (cell != null) list.repaint(cell);
+                return;
+            }
+        }
+    }
+
+    private void openSelected(LayerManager manager, Runnable repaintCallback) {
+        File file = list.getSelectedValue();
+        if (file == null) return;
+        try {
+            FileHandler.loadLayers(manager, file);
+            repaintCallback.run();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error loading file: " + ex.getMessage());
+        }
+    }
+    private void openSelectedAsChallenge(LayerManager manager) {
+        File file = list.getSelectedValue();
+        if (file == null) return;
+        try {
+            new ChallengeWindow(ChallengeCache.analyze(file), manager);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error loading challenge: " + ex.getMessage());
+        }
+    }
+
+    // Plain thumbnail-sized box shown while loading, or for files that can't be read
+    private static class EmptyIcon implements Icon {
+        private final Color color;
+
+        EmptyIcon(Color color) {
+            this.color = color;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            g.setColor(color);
+            g.fillRect(x, y, getIconWidth(), getIconHeight());
+        }
+
+        @Override
+        public int getIconWidth() { return ThumbnailCache.WIDTH; }
+
+        @Override
+        public int getIconHeight() { return ThumbnailCache.HEIGHT; }
+    }
+}
@@ -2,9 +2,15 @@ package core;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+
+import javax.imageio.ImageIO;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 /**
  * The FileHandler class is responsible for reading and writing layer data
@@ -21,9 +27,19 @@ import java.util.List;
  * {
  *     "layers": [
  *         { "r": ..., "g": ..., "b": ..., "opacity": ..., "blendMode": "...",
- *           "x": ..., "y": ..., "width": ..., "height": ... }
+ *           "x": ..., "y": ..., "width": ..., "height": ... },
+ *         { "type": "group", "opacity": ..., "blendMode": "...",
+ *           "layers": [ ...same structure, groups can nest... ] },
+ *         { "type": "raster", "opacity": ..., "blendMode": "...",
+ *           "x": ..., "y": ..., "width": ..., "height": ..., "png": "<base64>" },
+ *         { "type": "rects", "opacity": ..., "blendMode": "...",
+ *           "x": ..., "y": ..., "width": ..., "height": ..., "count": ...,
+ *           "data": "<base64 of x, y, width, height, argb as big-endian ints per rectangle>" }
  *     ]
  * }
+ *
+ * Large sets of rectangles can also be imported from CSV with
+ * importRectangles(), see there for the format.
  */
 public class FileHandler {
     /**
@@ -36,22 +52,7 @@ public class FileHandler {
      * @throws IOException if writing to disk fails
      */
     public static void saveLayers(List<Layer> layers, File file) throws IOException {
-        JSONArray arr = new JSONArray();
-        for (Layer layer : layers) {
-            JSONObject obj = new JSONObject();
-            Color c = layer.getColor();
-            Rectangle r = layer.getShape();
-            obj.put("r", c.getRed());
-            obj.put("g", c.getGreen());
-            obj.put("b", c.getBlue());
-            obj.put("opacity", layer.getOpacity());
-            obj.put("blendMode", layer.getBlendMode().name());
-            obj.put("x", r.x);
-            obj.put("y", r.y);
-            obj.put("width", r.width);
-            obj.put("height", r.height);
-            arr.put(obj);
-        }
+        JSONArray arr = toJson(layers);
         JSONObject root = new JSONObject();
         root.put("layers", arr);
         try (FileWriter writer = new FileWriter(file)) {
@@ -67,27 +68,7 @@ public class FileHandler {
      * @throws IOException if the file cannot be read
      */
     public static void loadLayers(LayerManager manager, File file) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) sb.append(line);
-        }
-        JSONObject root = new JSONObject(sb.toString());
-        JSONArray arr = root.getJSONArray("layers");
-
-        List<Layer> newLayers = new ArrayList<>();
-        for (int i = 0; i < arr.length(); i++) {
-            JSONObject obj = arr.getJSONObject(i);
-            Color c = new Color(obj.getInt("r"), obj.getInt("g"), obj.getInt("b"));
-            float opacity = (float) obj.getDouble("opacity");
-            BlendMode mode = BlendMode.valueOf(obj.getString("blendMode"));
-            Rectangle rect = new Rectangle(
-                    obj.getInt("x"), obj.getInt("y"),
-                    obj.getInt("width"), obj.getInt("height")
-            );
-            newLayers.add(new Layer(c, opacity, mode, rect));
-        }
-        manager.setLayers(newLayers);
+        manager.setLayers(readLayers(file));
     }
     /**
      * Loads a list of layers from a JSON file for use in challenge mode.
@@ -99,25 +80,237 @@ public class FileHandler {
      * @throws IOException if the file cannot be read
      */
     public static List<Layer> loadChallenge(File file) throws IOException {
+        return readLayers(file);
+    }
+    /**
+     * Reads and parses the layer array of a JSON file. Shared by loadLayers(),
+     * loadChallenge() and the ChallengeCache so the format is parsed in one place.
+     *
+     * @param file the file to read from
+     * @return a new mutable list of the parsed layers
+     * @throws IOException if the file cannot be read
+     */
+    static List<Layer> readLayers(File file) throws IOException {
         StringBuilder sb = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String line;
             while ((line = reader.readLine()) != null) sb.append(line);
         }
-        JSONObject root = new JSONObject(sb.toString());
-        JSONArray arr = root.getJSONArray("layers");
+        return parseLayers(sb.toString());
+    }
+    /**
+     * Parses the layer array of a document that was already read into memory,
+     * for callers that also need the raw contents (like ThumbnailCache).
+     *
+     * @param json the contents of a saved document or challenge
+     * @return a new mutable list of the parsed layers
+     * @throws IOException if a raster layer's pixels cannot be decoded
+     */
+    static List<Layer> parseLayers(String json) throws IOException {
+        return parseLayers(new JSONObject(json));
+    }
+    /**
+     * Parses the layer array of a document embedded in a larger JSON object,
+     * like the target and player drawings of a RenderService scoring request.
+     *
+     * @param document an object with a "layers" array
+     * @return a new mutable list of the parsed layers
+     * @throws IOException if a raster layer's pixels cannot be decoded
+     */
+    static List<Layer> parseLayers(JSONObject document) throws IOException {
+        return fromJson(document.getJSONArray("layers"));
+    }
+    // Converts layers to JSON objects, groups become nested "layers" arrays
+    private static JSONArray toJson(List<Layer> layers) throws IOException {
+        JSONArray arr = new JSONArray();
+        for (Layer layer : layers) {
+            JSONObject obj = new JSONObject();
+            if (layer instanceof LayerGroup group) {
+                obj.put("type", "group");
+                obj.put("opacity", group.getOpacity());
+                obj.put("blendMode", group.getBlendMode().name());
+                obj.put("layers", toJson(group.getChildren()));
+                arr.put(obj);
+                continue;
+            }
+            if (layer instanceof RasterLayer raster) {
+                // Pixels are stored as a base64 PNG of just the layer's area
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(toFormat(raster.getImage(), BufferedImage.TYPE_INT_ARGB), "png", png);
+                Rectangle r = raster.getShape();
+                obj.put("type", "raster");
+                obj.put("opacity", raster.getOpacity());
+                obj.put("blendMode", raster.getBlendMode().name());
+                obj.put("x", r.x);
+                obj.put("y", r.y);
+                obj.put("width", r.width);
+                obj.put("height", r.height);
+                obj.put("png", Base64.getEncoder().encodeToString(png.toByteArray()));
+                arr.put(obj);
+                continue;
+            }
+            if (layer instanceof RectBatchLayer batch) {
+                // 20 bytes per rectangle, which stays manageable for a million of them
+                ByteBuffer data = ByteBuffer.allocate(batch.size() * 20);
+                batch.forEach((x, y, w, h, argb) -> data.putInt(x).putInt(y).putInt(w).putInt(h).putInt(argb));
+                Rectangle r = batch.getShape();
+                obj.put("type", "rects");
+                obj.put("opacity", batch.getOpacity());
+                obj.put("blendMode", batch.getBlendMode().name());
+                obj.put("x", r.x);
+                obj.put("y", r.y);
+                obj.put("width", r.width);
+                obj.put("height", r.height);
+                obj.put("count", batch.size());
+                obj.put("data", Base64.getEncoder().encodeToString(data.array()));
+                arr.put(obj);
+                continue;
+            }
+            Color c = layer.getColor();
+            Rectangle r = layer.getShape();
+            obj.put("r", c.getRed());
+            obj.put("g", c.getGreen());
+            obj.put("b", c.getBlue());
+            obj.put("opacity", layer.getOpacity());
+            obj.put("blendMode", layer.getBlendMode().name());
+            obj.put("x", r.x);
+            obj.put("y", r.y);
+            obj.put("width", r.width);
+            obj.put("height", r.height);
+            arr.put(obj);
+        }
+        return arr;
+    }
+    // Reads a "layers" array, objects without a "type" are plain layers so older files load unchanged
+    private static List<Layer> fromJson(JSONArray arr) throws IOException {
         List<Layer> layers = new ArrayList<>();
         for (int i = 0; i < arr.length(); i++) {
             JSONObject obj = arr.getJSONObject(i);
-            Color c = new Color(obj.getInt("r"), obj.getInt("g"), obj.getInt("b"));
             float opacity = (float) obj.getDouble("opacity");
             BlendMode mode = BlendMode.valueOf(obj.getString("blendMode"));
+            String type = obj.optString("type", "layer");
+            if (type.equals("group")) {
+                layers.add(new LayerGroup(fromJson(obj.getJSONArray("layers")), opacity, mode));
+                continue;
+            }
             Rectangle rect = new Rectangle(
                     obj.getInt("x"), obj.getInt("y"),
                     obj.getInt("width"), obj.getInt("height")
             );
+            if (type.equals("raster")) {
+                byte[] png = Base64.getDecoder().decode(obj.getString("png"));
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+                // Normalize to the pixel format the renderer expects
+                BufferedImage image = toFormat(decoded, BufferedImage.TYPE_INT_ARGB_PRE);
+                layers.add(new RasterLayer(image, opacity, mode, rect));
+                continue;
+            }
+            if (type.equals("rects")) {
+                ByteBuffer data = ByteBuffer.wrap(Base64.getDecoder().decode(obj.getString("data")));
+                int count = obj.getInt("count");
+                if (data.remaining() != count * 20) throw new IOException("Rectangle data does not match its count");
+                RectBatchLayer.Builder builder = new RectBatchLayer.Builder();
+                for (int k = 0; k < count; k++) {
+                    builder.add(data.getInt(), data.getInt(), data.getInt(), data.getInt(), data.getInt());
+                }
+                RectBatchLayer batch = builder.build(opacity, mode);
+                if (batch == null) continue;
+                batch.setBounds(rect.x, rect.y, rect.width, rect.height);
+                layers.add(batch);
+                continue;
+            }
+            Color c = new Color(obj.getInt("r"), obj.getInt("g"), obj.getInt("b"));
             layers.add(new Layer(c, opacity, mode, rect));
         }
         return layers;
     }
+    /**
+     * Reads a CSV file of rectangles into one RectBatchLayer, for data too
+     * big to draw as separate layers (treemaps, heatmaps, charts).
+     *
+     * Each line is x,y,width,height,r,g,b with an optional fifth color
+     * value for alpha (0-255, default 255). Coordinates can be in any range;
+     * the layer is scaled to fit the canvas keeping its proportions. A
+     * header line, blank lines and lines starting with # are skipped.
+     *
+     * The file is read as a stream and parsed without creating objects per
+     * line, so a million rectangles load in about a second.
+     *
+     * @param file the CSV file
+     * @return the layer, with normal blending and full opacity
+     * @throws IOException if the file cannot be read, a line is malformed, or it has no rectangles
+     */
+    public static RectBatchLayer importRectangles(File file) throws IOException {
+        RectBatchLayer.Builder builder = new RectBatchLayer.Builder();
+        int[] values = new int[8];
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) continue;
+                int n = parseInts(line, values);
+                if (n < 0) {
+                    if (lineNumber == 1) continue; // header
+                    throw new IOException("Line " + lineNumber + " is not a rectangle: " + line);
+                }
+                if (n != 7 && n != 8) {
+                    throw new IOException("Line " + lineNumber + " needs x,y,width,height,r,g,b[,a]");
+                }
+                int alpha = (n == 8) ? values[7] : 255;
+                int argb = (clamp(alpha) << 24) | (clamp(values[4]) << 16) | (clamp(values[5]) << 8) | clamp(values[6]);
+                builder.add(values[0], values[1], values[2], values[3], argb);
+            }
+        }
+        RectBatchLayer batch = builder.build(1.0f, BlendMode.NORMAL);
+        if (batch == null) throw new IOException("No rectangles in " + file.getName());
+
+        // Fit the data into the canvas, centered, keeping its aspect ratio
+        Rectangle data = batch.getDataBounds();
+        double scale = Math.min(Renderer.WIDTH / (double) data.width, Renderer.HEIGHT / (double) data.height);
+        int width = Math.max(1, (int) Math.round(data.width * scale));
+        int height = Math.max(1, (int) Math.round(data.height * scale));
+        batch.setBounds((Renderer.WIDTH - width) / 2, (Renderer.HEIGHT - height) / 2, width, height);
+        return batch;
+    }
+
+    // Parses comma separated integers into values, returns how many, or -1 if
+    // the line holds something else. Far cheaper than split() and parseInt()
+    private static int parseInts(String line, int[] values) {
+        int n = 0;
+        int i = 0;
+        int len = line.length();
+        while (i <= len) {
+            while (i < len && line.charAt(i) == ' ') i++;
+            boolean negative = i < len && line.charAt(i) == '-';
+            if (negative) i++;
+            int start = i;
+            long value = 0;
+            while (i < len && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                value = value * 10 + (line.charAt(i++) - '0');
+                if (value > Integer.MAX_VALUE) return -1;
+            }
+            if (i == start || n == values.length) return -1;
+            values[n++] = (int) (negative ? -value : value);
+            while (i < len && line.charAt(i) == ' ') i++;
+            if (i == len) return n;
+            if (line.charAt(i) != ',') return -1;
+            i++;
+        }
+        return -1;
+    }
+
+    private static int clamp(int channel) {
+        return Math.max(0, Math.min(255, channel));
+    }
+    // Returns the image in the given pixel format, converting only if needed
+    private static BufferedImage toFormat(BufferedImage image, int type) {
+        if (image.getType() == type) return image;
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
 }
@@ -0,0 +1,387 @@
+package core;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * GoldenImages checks that the renderer still draws exactly what it used to,
+ * and not slower or hungrier than before, so a faster blend or draw path can
+ * be swapped in without guessing whether it changed any pixels.
+ *
+ * It renders a fixed corpus of saved scenes that cover every BlendMode at
+ * several opacities, the ways rectangles can overlap (apart, touching,
+ * partly, nested, identical, off the canvas), opaque layers hiding others,
+ * nested groups, raster layers, rectangle batches and renders at other
+ * sizes. For each scene it
+ *  - hashes the rendered int[] and compares it with the golden hash,
+ *  - renders it again in strips and checks those give the same pixels,
+ *  - times the render and counts the bytes it allocates, and fails when
+ *    either is over the scene's budget.
+ * On a mismatch it writes diff/<scene>.png: the golden image faded to gray
+ * with every changed pixel in red, brighter the bigger the change.
+ *
+ * Folder layout (the golden/ folder in the project):
+ *   scenes/<scene>.json   the scenes, in FileHandler format
+ *   images/<scene>.png    the golden renders, only read to draw diffs
+ *   golden.txt            one line per scene: size, hash and budgets
+ *
+ * Usage:
+ *   java -Djava.awt.headless=true core.GoldenImages [folder]            check
+ *   java -Djava.awt.headless=true core.GoldenImages --update [folder]   re-record
+ * A check exits with status 1 if any scene fails. --update writes the
+ * corpus, images and hashes again and sets the budgets from this machine's
+ * measurements with some headroom; only do that after checking that the
+ * changed pixels are intended. Budgets in golden.txt can be edited by hand.
+ */
+public class GoldenImages {
+    // Renders per scene before measuring, so the JIT has compiled the hot loops
+    private static final int WARMUP = 3;
+    // Measured renders per scene; the median time counts
+    private static final int RUNS = 5;
+    // Strips the strip check cuts each render into
+    private static final int STRIPS = 3;
+
+    private final File folder;
+
+    /** One line of golden.txt. */
+    record Golden(String scene, int width, int height, long hash, long timeBudgetMs, long allocBudgetKb) {}
+
+    /** What rendering one scene gave. */
+    record Measurement(BufferedImage image, long hash, boolean stripsMatch, long medianMs, long allocatedKb) {}
+
+    /**
+     * @param folder the folder holding scenes/, images/ and golden.txt
+     */
+    public GoldenImages(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Renders every scene in golden.txt and compares it with its golden values.
+     * Prints one line per scene.
+     *
+     * @return the number of scenes that failed
+     * @throws IOException if the golden data cannot be read or a diff cannot be written
+     */
+    public int check() throws IOException {
+        int failures = 0;
+        for (Golden golden : readGolden()) {
+            List<String> problems = new ArrayList<>();
+            Measurement m = measure(new File(folder, "scenes/" + golden.scene() + ".json"), golden.width(), golden.height());
+            if (m.hash() != golden.hash()) {
+                File diff = writeDiff(golden.scene(), m.image());
+                problems.add(String.format("hash %016x, expected %016x, see %s", m.hash(), golden.hash(), diff));
+            }
+            if (!m.stripsMatch()) problems.add("strips differ from the full render");
+            if (m.medianMs() > golden.timeBudgetMs()) {
+                problems.add(String.format("took %d ms, budget %d ms", m.medianMs(), golden.timeBudgetMs()));
+            }
+            if (m.allocatedKb() > golden.allocBudgetKb()) {
+                problems.add(String.format("allocated %d KB, budget %d KB", m.allocatedKb(), golden.allocBudgetKb()));
+            }
+            System.out.printf("%-4s %-24s %4d ms %7d KB  %s%n", problems.isEmpty() ? "ok" : "FAIL", golden.scene(),
+                    m.medianMs(), m.allocatedKb(), String.join("; ", problems));
+            if (!problems.isEmpty()) failures++;
+        }
+        return failures;
+    }
+
+    /**
+     * Writes the corpus again and records its images, hashes and budgets as
+     * the new golden values.
+     *
+     * @throws IOException if the folder cannot be written
+     */
+    public void update() throws IOException {
+        File scenes = new File(folder, "scenes");
+        File images = new File(folder, "images");
+        if (!scenes.isDirectory() && !scenes.mkdirs()) throw new IOException("Cannot create " + scenes);
+        if (!images.isDirectory() && !images.mkdirs()) throw new IOException("Cannot create " + images);
+        try (PrintWriter out = new PrintWriter(new File(folder, "golden.txt"))) {
+            out.println("# scene width height hash timeBudgetMs allocBudgetKb");
+            for (Scene scene : corpus()) {
+                File file = new File(scenes, scene.name() + ".json");
+                FileHandler.saveLayers(scene.layers(), file);
+                Measurement m = measure(file, scene.width(), scene.height());
+                if (!m.stripsMatch()) System.out.println("warning: strips differ from the full render in " + scene.name());
+                ImageIO.write(toArgb(m.image()), "png", new File(images, scene.name() + ".png"));
+                // Timing varies a lot between runs and machines, allocation hardly at all
+                long timeBudget = Math.max(25, m.medianMs() * 3);
+                long allocBudget = m.allocatedKb() + m.allocatedKb() / 4 + 256;
+                out.printf("%s %d %d %016x %d %d%n", scene.name(), scene.width(), scene.height(), m.hash(),
+                        timeBudget, allocBudget);
+                System.out.printf("recorded %-24s %4d ms %7d KB%n", scene.name(), m.medianMs(), m.allocatedKb());
+            }
+        }
+    }
+
+    private List<Golden> readGolden() throws IOException {
+        List<Golden> goldens = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(folder, "golden.txt")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) continue;
+                String[] f = line.trim().split("\\s+");
+                if (f.length != 6) throw new IOException("Bad line in golden.txt: " + line);
+                goldens.add(new Golden(f[0], Integer.parseInt(f[1]), Integer.parseInt(f[2]),
+                        Long.parseUnsignedLong(f[3], 16), Long.parseLong(f[4]), Long.parseLong(f[5])));
+            }
+        }
+        return goldens;
+    }
+
+    // Renders a scene file WARMUP + RUNS times. Every run gets freshly parsed layers,
+    // so group caches built by one run do not make the next one look cheaper
+    private static Measurement measure(File file, int width, int height) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] times = new long[RUNS];
+        long allocated = Long.MAX_VALUE;
+        BufferedImage image = null;
+        for (int run = -WARMUP; run < RUNS; run++) {
+            List<Layer> layers = FileHandler.readLayers(file);
+            long bytes = threads.getCurrentThreadAllocatedBytes();
+            long t0 = System.nanoTime();
+            image = Renderer.render(layers, width, height);
+            long t1 = System.nanoTime();
+            if (run < 0) continue;
+            times[run] = t1 - t0;
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - bytes);
+        }
+        Arrays.sort(times);
+        long hash = hash(pixels(image));
+
+        // Stitch the image together from strips; they must match the single render exactly
+        List<Layer> layers = FileHandler.readLayers(file);
+        int[] full = pixels(image);
+        boolean stripsMatch = true;
+        int rows = (height + STRIPS - 1) / STRIPS;
+        for (int y = 0; y < height && stripsMatch; y += rows) {
+            int n = Math.min(rows, height - y);
+            int[] strip = pixels(Renderer.renderStrip(layers, width, height, y, n));
+            stripsMatch = Arrays.equals(strip, 0, strip.length, full, y * width, (y + n) * width);
+        }
+        return new Measurement(image, hash, stripsMatch, times[RUNS / 2] / 1_000_000, allocated / 1024);
+    }
+
+    /**
+     * A fast 64-bit hash of a raster, far cheaper than the render it checks.
+     * Any changed pixel changes it, with near certainty.
+     */
+    static long hash(int[] pixels) {
+        long h = 0x9E3779B97F4A7C15L ^ pixels.length;
+        for (int p : pixels) {
+            h = (h ^ (p & 0xffffffffL)) * 0x100000001B3L;
+            h ^= h >>> 29;
+        }
+        // Final mix, so nearby rasters give unrelated hashes
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // The golden image in gray, changed pixels in red scaled by the largest channel difference
+    private File writeDiff(String scene, BufferedImage actual) throws IOException {
+        File diffDir = new File(folder, "diff");
+        if (!diffDir.isDirectory() && !diffDir.mkdirs()) throw new IOException("Cannot create " + diffDir);
+        File out = new File(diffDir, scene + ".png");
+        File goldenPng = new File(folder, "images/" + scene + ".png");
+        BufferedImage expected = goldenPng.exists() ? ImageIO.read(goldenPng) : null;
+        if (expected == null || expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()) {
+            // Nothing to compare against, show what was rendered
+            ImageIO.write(toArgb(actual), "png", out);
+            return out;
+        }
+        BufferedImage diff = new BufferedImage(actual.getWidth(), actual.getHeight(), BufferedImage.TYPE_INT_RGB);
+        int changed = 0;
+        int worst = 0;
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                int d = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    d = Math.max(d, Math.abs(((e >>> shift) & 0xff) - ((a >>> shift) & 0xff)));
+                }
+                if (d == 0) {
+                    int gray = (((e >> 16) & 0xff) + ((e >> 8) & 0xff) + (e & 0xff)) / 3;
+                    gray = 64 + gray / 2; // faded, so the red stands out
+                    diff.setRGB(x, y, (gray << 16) | (gray << 8) | gray);
+                } else {
+                    changed++;
+                    worst = Math.max(worst, d);
+                    diff.setRGB(x, y, (128 + d / 2) << 16);
+                }
+            }
+        }
+        ImageIO.write(diff, "png", out);
+        System.out.printf("     %s: %d pixels changed, by up to %d%n", scene, changed, worst);
+        return out;
+    }
+
+    // PNG has no premultiplied alpha; renders are opaque so this loses nothing
+    private static BufferedImage toArgb(BufferedImage image) {
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = argb.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return argb;
+    }
+
+    // One scene of the corpus and the size it is rendered at
+    private record Scene(String name, List<Layer> layers, int width, int height) {
+        Scene(String name, List<Layer> layers) {
+            this(name, layers, Renderer.WIDTH, Renderer.HEIGHT);
+        }
+    }
+
+    // The corpus --update writes. Checks only read the saved files, so changing
+    // this has no effect until the golden values are recorded again
+    private static List<Scene> corpus() {
+        List<Scene> scenes = new ArrayList<>();
+
+        // Every blend mode over a row of colors, with one opaque and one half transparent layer
+        Color[] base = {Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, new Color(40, 40, 40), new Color(200, 120, 60)};
+        for (BlendMode mode : BlendMode.values()) {
+            List<Layer> layers = new ArrayList<>();
+            for (int i = 0; i < base.length; i++) {
+                layers.add(layer(base[i], 1f, BlendMode.NORMAL, 40 + i * 120, 60, 110, 480));
+            }
+            layers.add(layer(new Color(120, 180, 240), 1f, mode, 20, 100, 760, 150));
+            layers.add(layer(new Color(250, 90, 160), 0.5f, mode, 100, 320, 600, 180));
+            scenes.add(new Scene("blend-" + mode.name().toLowerCase(), layers));
+        }
+
+        // Opacity from invisible to opaque, over a split background
+        for (float opacity : new float[]{0f, 0.1f, 0.5f, 0.9f, 1f}) {
+            List<Layer> layers = new ArrayList<>();
+            layers.add(layer(Color.BLACK, 1f, BlendMode.NORMAL, 0, 0, 400, 600));
+            layers.add(layer(new Color(30, 160, 90), opacity, BlendMode.NORMAL, 200, 100, 400, 400));
+            layers.add(layer(new Color(230, 60, 30), opacity, BlendMode.SCREEN, 300, 200, 400, 300));
+            scenes.add(new Scene("opacity-" + Math.round(opacity * 100), layers));
+        }
+
+        // The ways two rectangles can overlap, each pair in its own spot
+        List<Layer> overlap = new ArrayList<>();
+        int[][] pairs = {
+                {20, 20, 100, 100, 200, 20, 100, 100},     // apart
+                {350, 20, 100, 100, 450, 20, 100, 100},    // touching edges
+                {600, 20, 120, 120, 660, 80, 120, 120},    // partly
+                {20, 250, 200, 200, 70, 300, 100, 100},    // one inside the other
+                {300, 250, 150, 150, 300, 250, 150, 150},  // identical
+                {700, 400, 200, 300, 650, 500, 50, 50},    // off the canvas
+                {-50, 450, 120, 200, 10, 500, 120, 40},    // off the left edge
+        };
+        for (int[] p : pairs) {
+            overlap.add(layer(new Color(60, 90, 200), 0.8f, BlendMode.NORMAL, p[0], p[1], p[2], p[3]));
+            overlap.add(layer(new Color(240, 170, 30), 0.6f, BlendMode.MULTIPLY, p[4], p[5], p[6], p[7]));
+        }
+        scenes.add(new Scene("overlap", overlap));
+
+        // Opaque NORMAL layers on top hide whole tiles of what is below, which the renderer skips
+        List<Layer> hidden = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            hidden.add(layer(new Color(i * 12, 255 - i * 12, 128), 0.7f, BlendMode.ADD, i * 30, i * 20, 300, 200));
+        }
+        hidden.add(layer(Color.DARK_GRAY, 1f, BlendMode.NORMAL, 33, 17, 500, 390));
+        hidden.add(layer(Color.ORANGE, 1f, BlendMode.DIFFERENCE, 250, 250, 300, 300));
+        scenes.add(new Scene("hidden", hidden));
+
+        // Odd sizes and positions, where rounding to whole pixels matters
+        List<Layer> thin = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            thin.add(layer(new Color(255, i * 6, 0), 0.9f, BlendMode.NORMAL, 3 + i * 19, 7 + i * 13, 1 + i % 3, 577 - i * 13));
+        }
+        scenes.add(new Scene("thin", thin));
+
+        // Groups inside groups, with their own opacity and blend modes
+        List<Layer> inner = new ArrayList<>();
+        inner.add(layer(Color.CYAN, 1f, BlendMode.NORMAL, 150, 150, 200, 200));
+        inner.add(layer(Color.MAGENTA, 0.7f, BlendMode.MULTIPLY, 250, 200, 200, 200));
+        List<Layer> outer = new ArrayList<>();
+        outer.add(layer(Color.YELLOW, 0.8f, BlendMode.NORMAL, 100, 100, 400, 300));
+        outer.add(new LayerGroup(inner, 0.6f, BlendMode.OVERLAY));
+        List<Layer> groups = new ArrayList<>();
+        groups.add(layer(new Color(20, 40, 80), 1f, BlendMode.NORMAL, 0, 0, 800, 600));
+        groups.add(new LayerGroup(outer, 0.9f, BlendMode.SCREEN));
+        groups.add(layer(Color.WHITE, 0.3f, BlendMode.NORMAL, 350, 250, 300, 200));
+        scenes.add(new Scene("groups", groups));
+
+        // Baked pixels, stretched and blended
+        BufferedImage gradient = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB_PRE);
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) gradient.setRGB(x, y, new Color(x * 4, y * 5, 255 - x * 2, 128 + y * 2).getRGB());
+        }
+        List<Layer> raster = new ArrayList<>();
+        raster.add(layer(new Color(90, 90, 90), 1f, BlendMode.NORMAL, 0, 300, 800, 300));
+        raster.add(new RasterLayer(gradient, 1f, BlendMode.NORMAL, new Rectangle(50, 50, 320, 240)));
+        raster.add(new RasterLayer(gradient, 0.7f, BlendMode.LIGHTEN, new Rectangle(300, 200, 450, 350)));
+        scenes.add(new Scene("raster", raster));
+
+        // A rectangle batch with rectangles smaller than a pixel, stretched to its layer
+        Random random = new Random(50);
+        RectBatchLayer.Builder builder = new RectBatchLayer.Builder();
+        for (int i = 0; i < 5000; i++) {
+            builder.add(random.nextInt(2000), random.nextInt(1500), 1 + random.nextInt(30), 1 + random.nextInt(30),
+                    random.nextInt(256) << 24 | random.nextInt(1 << 24));
+        }
+        RectBatchLayer batch = builder.build(0.9f, BlendMode.NORMAL);
+        batch.setBounds(100, 75, 600, 450);
+        scenes.add(new Scene("rect-batch", new ArrayList<>(List.of(layer(Color.BLACK, 1f, BlendMode.NORMAL, 0, 0, 800, 600), batch))));
+
+        // Many random layers, mostly to give the time budget something to measure
+        List<Layer> many = new ArrayList<>();
+        BlendMode[] modes = BlendMode.values();
+        for (int i = 0; i < 400; i++) {
+            many.add(layer(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)),
+                    0.2f + random.nextInt(9) / 10f, modes[random.nextInt(modes.length)],
+                    random.nextInt(800) - 50, random.nextInt(600) - 50, 10 + random.nextInt(250), 10 + random.nextInt(250)));
+        }
+        scenes.add(new Scene("many-layers", many));
+
+        // The same scene scaled down and up, like thumbnails and exports
+        scenes.add(new Scene("groups-small", groups, 200, 150));
+        scenes.add(new Scene("overlap-large", overlap, 2000, 1500));
+        return scenes;
+    }
+
+    private static Layer layer(Color color, float opacity, BlendMode mode, int x, int y, int width, int height) {
+        return new Layer(color, opacity, mode, new Rectangle(x, y, width, height));
+    }
+
+    /**
+     * Checks the renders, or records them again with --update.
+     *
+     * @param args [--update] [folder, default golden]
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        boolean update = args.length > 0 && args[0].equals("--update");
+        int next = update ? 1 : 0;
+        File folder = new File(args.length > next ? args[next] : "golden");
+        GoldenImages golden = new GoldenImages(folder);
+        if (update) {
+            golden.update();
+            return;
+        }
+        int failures = golden.check();
+        System.out.println(failures == 0 ? "All scenes match" : failures + " scene(s) failed");
+        if (failures > 0) System.exit(1);
+    }
+}
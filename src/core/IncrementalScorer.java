@@ -0,0 +1,169 @@
+package core;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+
+/**
+ * IncrementalScorer keeps a live challenge score up to date while the player
+ * edits, without rerunning ChallengeScorer.compare on every mouse event.
+ *
+ * The score is the same as the one "Check My Drawing" reports:
+ * ChallengeScorer's OPTIMAL matching between the challenge layers and the
+ * player's layers, with groups scored by the layers inside them. The
+ * scorer keeps the cost matrix of every target/player pair. When layers are
+ * moved, resized or restyled, only the columns of the player layers
+ * involved are rescored, one layerScore per target layer, and the
+ * assignment is solved again on the kept matrix. Changes that shift indices,
+ * like deleting a layer or undo, rebuild the whole matrix once.
+ *
+ * Player layers are tracked by their position in the flattened drawing, so
+ * an edit inside a group or of a whole group only rescores the layers it
+ * contains.
+ *
+ * Edits are collected on the EDT as small layer copies and applied on a
+ * background thread at most once every THROTTLE_MS milliseconds. The new
+ * score is then handed back to the EDT through the listener.
+ */
+public class IncrementalScorer implements LayerManager.ChangeListener {
+    /** Minimum time between two score updates, in milliseconds. */
+    public static final int THROTTLE_MS = 100;
+
+    private final List<Layer> target;
+    private final LayerManager manager;
+    private final DoubleConsumer listener;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "live-scorer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Only touched by the EDT: where each top-level layer's leaves start in the flattened drawing
+    private int[] leafStart = new int[1];
+
+    // Only touched by the worker thread. The cost matrix in ChallengeScorer.costMatrix()
+    // orientation: targets as rows when there are no more of them than player layers
+    private double[][] cost = new double[0][];
+    private boolean targetRows;
+    private int playerCount;
+
+    // Edits waiting for the worker, by flattened index, guarded by this
+    private Map<Integer, Layer> pending = new HashMap<>();
+    private List<Layer> pendingReset;
+    private boolean scheduled;
+
+    /**
+     * Creates a scorer for the given challenge and starts listening to the
+     * player's LayerManager. The first score is computed right away.
+     *
+     * @param target   the challenge layers, treated as read-only
+     * @param manager  the player's LayerManager
+     * @param listener receives each new score (0.0 to 1.0) on the EDT
+     */
+    public IncrementalScorer(List<Layer> target, LayerManager manager, DoubleConsumer listener) {
+        this.target = LayerGroup.flatten(target);
+        this.manager = manager;
+        this.listener = listener;
+        manager.addChangeListener(this);
+        layersReplaced();
+    }
+
+    /**
+     * Stops listening to the LayerManager and shuts down the worker thread.
+     */
+    public void dispose() {
+        manager.removeChangeListener(this);
+        worker.shutdownNow();
+    }
+
+    @Override
+    public void layerChanged(int index) {
+        List<Layer> layers = manager.getLayers();
+        // An appended layer adds leaves at the end, which changes the matrix size
+        if (index < 0 || index + 1 >= leafStart.length || index >= layers.size()) {
+            layersReplaced();
+            return;
+        }
+        List<Layer> leaves = LayerGroup.flatten(List.of(layers.get(index)));
+        int first = leafStart[index];
+        if (leaves.size() != leafStart[index + 1] - first) {
+            layersReplaced();
+            return;
+        }
+        List<Layer> snapshot = new ArrayList<>(leaves.size());
+        for (Layer leaf : leaves) snapshot.add(leaf.copy());
+        synchronized (this) {
+            for (int k = 0; k < snapshot.size(); k++) pending.put(first + k, snapshot.get(k));
+            schedule();
+        }
+    }
+
+    @Override
+    public void layersReplaced() {
+        List<Layer> layers = manager.getLayers();
+        int[] starts = new int[layers.size() + 1];
+        List<Layer> snapshot = new ArrayList<>();
+        for (int i = 0; i < layers.size(); i++) {
+            starts[i] = snapshot.size();
+            for (Layer leaf : LayerGroup.flatten(List.of(layers.get(i)))) snapshot.add(leaf.copy());
+        }
+        starts[layers.size()] = snapshot.size();
+        leafStart = starts;
+        synchronized (this) {
+            pendingReset = snapshot;
+            pending.clear(); // the reset already contains every edit so far
+            schedule();
+        }
+    }
+
+    // Must hold the lock
+    private void schedule() {
+        if (scheduled || worker.isShutdown()) return;
+        scheduled = true;
+        worker.schedule(this::flush, THROTTLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        List<Layer> reset;
+        Map<Integer, Layer> edits;
+        synchronized (this) {
+            reset = pendingReset;
+            edits = pending;
+            pendingReset = null;
+            pending = new HashMap<>();
+            scheduled = false;
+        }
+
+        if (reset != null) {
+            playerCount = reset.size();
+            targetRows = target.size() <= playerCount;
+            cost = (target.isEmpty() || reset.isEmpty()) ? new double[0][] : ChallengeScorer.costMatrix(target, reset);
+        }
+        if (cost.length > 0) {
+            for (Map.Entry<Integer, Layer> edit : edits.entrySet()) {
+                int p = edit.getKey();
+                for (int t = 0; t < target.size(); t++) {
+                    double c = 1.0 - ChallengeScorer.layerScore(target.get(t), edit.getValue());
+                    if (targetRows) cost[t][p] = c;
+                    else cost[p][t] = c;
+                }
+            }
+        }
+
+        double score = 0.0;
+        if (cost.length > 0) {
+            int[] match = ChallengeScorer.assign(cost);
+            double total = 0;
+            for (int i = 0; i < match.length; i++) total += 1.0 - cost[i][match[i]];
+            score = total / Math.max(target.size(), playerCount);
+        }
+        double result = score;
+        SwingUtilities.invokeLater(() -> listener.accept(result));
+    }
+}
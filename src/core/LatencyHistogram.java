@@ -0,0 +1,49 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts how long operations took, in one bucket per
+ * millisecond, and answers percentile questions (p50, p95, p99) about them.
+ *
+ * Memory use is fixed no matter how many operations are recorded, and
+ * recording is a single atomic increment, so many threads can record at
+ * once. Used by BatchGrader and RenderService.
+ */
+class LatencyHistogram {
+    // One bucket per millisecond, the last one collects everything slower
+    private static final int MAX_LATENCY_MS = 10_000;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(MAX_LATENCY_MS + 1);
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * @param nanos how long one operation took
+     */
+    void record(long nanos) {
+        buckets.incrementAndGet((int) Math.min(MAX_LATENCY_MS, nanos / 1_000_000));
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return how many operations were recorded
+     */
+    long count() { return count.get(); }
+
+    /**
+     * @param p the percentile as a fraction, e.g. 0.95
+     * @return upper bound in whole milliseconds of that percentile, or 0 if nothing was recorded
+     */
+    long percentile(double p) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long wanted = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int ms = 0; ms <= MAX_LATENCY_MS; ms++) {
+            seen += buckets.get(ms);
+            if (seen >= wanted) return ms + 1;
+        }
+        return MAX_LATENCY_MS;
+    }
+}
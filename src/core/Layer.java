@@ -1,6 +1,9 @@
 package core;
 
 import java.awt.*;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.Objects;
 /**
  * A Layer is one rectangular shape in the drawing program. All drawings are composed of layers
  * Each layer has:
@@ -10,13 +13,17 @@ import java.awt.*;
  * - dimensions for width and height
  *
  * Layers can be moved, resized using corner handles, and drawn with
- * visual resize handles for user interaction.
+ * visual resize handles for user interaction. A layer can also carry
+ * animation keyframes (see Timeline), which travel with it through copies,
+ * undo and collaboration.
  */
 public class Layer {
     private Color color;
     private float opacity;
     private BlendMode blendMode;
     private Rectangle shape;
+    // Animation keyframes by time, or null. Never changed in place, so copies share it
+    private NavigableMap<Double, Timeline.Keyframe> keyframes;
 
     // Handle size in pixels
     private static final int HANDLE_SIZE = 7;
@@ -65,6 +72,19 @@ public class Layer {
      * @param dy     how far the mouse moved vertically
      */
     public void resize(HandlePosition handle, int dx, int dy) {
+        resizeRect(shape, handle, dx, dy);
+    }
+
+    /**
+     * Applies a corner-handle drag to any rectangle, using the same rules as
+     * resize(). Also used to resize the bounds of a multi-layer selection.
+     *
+     * @param shape  the rectangle to change in place
+     * @param handle the handle being dragged
+     * @param dx     how far the mouse moved horizontally
+     * @param dy     how far the mouse moved vertically
+     */
+    static void resizeRect(Rectangle shape, HandlePosition handle, int dx, int dy) {
         switch (handle) {
             case TOP_LEFT -> {
                 shape.x += dx;
@@ -100,6 +120,17 @@ public class Layer {
      * @return which handle the point touches, or NONE if it touches none
      */
     public HandlePosition getHandleAt(Point p) {
+        return getHandleAt(shape, p);
+    }
+
+    /**
+     * Same as getHandleAt(Point), but for the handles of any rectangle.
+     *
+     * @param shape the rectangle whose corners hold the handles
+     * @param p     the point to check
+     * @return which handle the point touches, or NONE if it touches none
+     */
+    static HandlePosition getHandleAt(Rectangle shape, Point p) {
         Rectangle tl = new Rectangle(shape.x - HANDLE_SIZE / 2, shape.y - HANDLE_SIZE / 2, HANDLE_SIZE, HANDLE_SIZE);
         Rectangle tr = new Rectangle(shape.x + shape.width - HANDLE_SIZE / 2, shape.y - HANDLE_SIZE / 2, HANDLE_SIZE, HANDLE_SIZE);
         Rectangle bl = new Rectangle(shape.x - HANDLE_SIZE / 2, shape.y + shape.height - HANDLE_SIZE / 2, HANDLE_SIZE, HANDLE_SIZE);
@@ -112,22 +143,131 @@ public class Layer {
         return HandlePosition.NONE;
     }
 
+    /**
+     * Moves and resizes the layer to the given rectangle in one step.
+     *
+     * @param x      new left edge
+     * @param y      new top edge
+     * @param width  new width
+     * @param height new height
+     */
+    public void setBounds(int x, int y, int width, int height) {
+        shape.setBounds(x, y, width, height);
+    }
+
+    /**
+     * Tells whether another layer looks exactly like this one: the same kind
+     * of layer with the same color, opacity, blend mode, shape and keyframes.
+     *
+     * @param other the layer to compare with
+     * @return true if both layers render the same pixels, still and animated
+     */
+    boolean sameContent(Layer other) {
+        return other != null && other.getClass() == getClass()
+                && color.equals(other.color)
+                && Float.floatToIntBits(opacity) == Float.floatToIntBits(other.opacity)
+                && blendMode == other.blendMode
+                && shape.equals(other.shape)
+                && Objects.equals(keyframes, other.keyframes);
+    }
+
+    /**
+     * Compares two lists of layers entry by entry with sameContent().
+     *
+     * @return true if both lists hold layers that look the same, in the same order
+     */
+    static boolean sameContent(java.util.List<Layer> a, java.util.List<Layer> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).sameContent(b.get(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Computes a hash of everything that affects how this layer looks, for
+     * finding candidates in a cache. Different layers can share a hash, so
+     * a match must be confirmed with sameContent().
+     *
+     * @return a 64-bit hash of color, opacity, blend mode and shape
+     */
+    long contentHash() {
+        long h = mix(getClass().getName().hashCode(), color.getRGB());
+        h = mix(h, Float.floatToIntBits(opacity));
+        h = mix(h, blendMode.ordinal());
+        h = mix(h, shape.x);
+        h = mix(h, shape.y);
+        h = mix(h, shape.width);
+        h = mix(h, shape.height);
+        return h;
+    }
+
+    /**
+     * Folds one value into a running hash. Every bit of the value affects
+     * every bit of the result, so small changes to several fields do not
+     * cancel out the way they do in a plain h * 31 + v chain.
+     */
+    static long mix(long h, long v) {
+        h ^= v * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Creates an independent copy of this layer. The rectangle is copied too,
+     * so moving or resizing the copy does not affect the original.
+     *
+     * @return a new layer with the same color, opacity, blend mode and shape
+     */
+    public Layer copy() {
+        Layer copy = new Layer(color, opacity, blendMode, new Rectangle(shape));
+        copy.keyframes = keyframes;
+        return copy;
+    }
+
     /**
      * @return the fill color of the layer
      */
     public Color getColor() { return color; }
+    /**
+     * @param color the new fill color of the layer
+     */
+    public void setColor(Color color) { this.color = color; }
     /**
      * @return the opacity of the layer (0.0 to 1.0)
      */
     public float getOpacity() { return opacity; }
+    /**
+     * @param opacity the new opacity of the layer (0.0 to 1.0)
+     */
+    public void setOpacity(float opacity) { this.opacity = opacity; }
     /**
      * @return the blend mode used when compositing this layer
      */
     public BlendMode getBlendMode() { return blendMode; }
+    /**
+     * @param blendMode the new blend mode used when compositing this layer
+     */
+    public void setBlendMode(BlendMode blendMode) { this.blendMode = blendMode; }
     /**
      * @return the rectangle that defines the layer's position and size
      */
     public Rectangle getShape() { return shape; }
+    /**
+     * @return the layer's animation keyframes by time, or null if it is not animated. Read only
+     */
+    NavigableMap<Double, Timeline.Keyframe> getKeyframes() { return keyframes; }
+    /**
+     * @param keyframes the new keyframes by time, or null to stop animating the layer.
+     *                  Kept as they are, so they must not be changed afterwards
+     */
+    void setKeyframes(NavigableMap<Double, Timeline.Keyframe> keyframes) {
+        this.keyframes = (keyframes == null) ? null : Collections.unmodifiableNavigableMap(keyframes);
+    }
 
     /**
      * Draws small black squares at the four corners of the layer.
@@ -136,6 +276,17 @@ public class Layer {
      * @param g2d the graphics context to draw into
      */
     public void drawHandles(Graphics2D g2d) {
+        drawHandles(g2d, shape);
+    }
+
+    /**
+     * Draws the four corner handles of any rectangle, for example the
+     * bounds of a multi-layer selection.
+     *
+     * @param g2d   the graphics context to draw into
+     * @param shape the rectangle whose corners get handles
+     */
+    static void drawHandles(Graphics2D g2d, Rectangle shape) {
         g2d.setColor(Color.BLACK);
         int s = HANDLE_SIZE;
         g2d.fillRect(shape.x - s / 2, shape.y - s / 2, s, s);
@@ -0,0 +1,177 @@
+package core;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * LayerCodec writes layers in a compact binary form and reads them back.
+ * It is used where JSON would be too large or too slow: spilling undo
+ * history to disk (UndoHistory) and sending edits to collaborators
+ * (CollabServer, CollabClient).
+ *
+ * Each layer starts with a type byte, its opacity and blend mode. A plain
+ * layer then has its rectangle and ARGB color, about 30 bytes in total.
+ * A raster layer has its rectangle and its premultiplied pixels, copied as
+ * they are so they come back bit for bit, a rectangle batch its
+ * rectangle followed by every rectangle it holds, and a group has its
+ * children as a nested list. Every layer ends with its animation
+ * keyframes, so they survive undo spilling and reach collaborators.
+ */
+class LayerCodec {
+    private static final byte PLAIN = 0, GROUP = 1, RASTER = 2, BATCH = 3;
+
+    private LayerCodec() {}
+
+    /**
+     * Writes a count followed by each layer.
+     */
+    static void writeLayers(DataOutputStream out, List<Layer> layers) throws IOException {
+        out.writeInt(layers.size());
+        for (Layer l : layers) writeLayer(out, l);
+    }
+
+    /**
+     * Reads a list written by writeLayers().
+     */
+    static List<Layer> readLayers(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Layer> layers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) layers.add(readLayer(in));
+        return layers;
+    }
+
+    /**
+     * Writes one layer, including the children of a group.
+     */
+    static void writeLayer(DataOutputStream out, Layer l) throws IOException {
+        writeContent(out, l);
+        NavigableMap<Double, Timeline.Keyframe> keyframes = l.getKeyframes();
+        out.writeInt((keyframes == null) ? 0 : keyframes.size());
+        if (keyframes == null) return;
+        for (Map.Entry<Double, Timeline.Keyframe> e : keyframes.entrySet()) {
+            Timeline.Keyframe k = e.getValue();
+            out.writeDouble(e.getKey());
+            out.writeInt(k.bounds().x);
+            out.writeInt(k.bounds().y);
+            out.writeInt(k.bounds().width);
+            out.writeInt(k.bounds().height);
+            out.writeInt(k.color().getRGB());
+            out.writeFloat(k.opacity());
+        }
+    }
+
+    private static void writeContent(DataOutputStream out, Layer l) throws IOException {
+        if (l instanceof LayerGroup group) {
+            out.writeByte(GROUP);
+            out.writeFloat(group.getOpacity());
+            out.writeByte(group.getBlendMode().ordinal());
+            writeLayers(out, group.getChildren());
+            return;
+        }
+        out.writeByte(l instanceof RasterLayer ? RASTER : l instanceof RectBatchLayer ? BATCH : PLAIN);
+        out.writeFloat(l.getOpacity());
+        out.writeByte(l.getBlendMode().ordinal());
+        Rectangle r = l.getShape();
+        out.writeInt(r.x);
+        out.writeInt(r.y);
+        out.writeInt(r.width);
+        out.writeInt(r.height);
+        if (l instanceof RasterLayer raster) {
+            BufferedImage image = raster.getImage();
+            int w = image.getWidth();
+            int h = image.getHeight();
+            out.writeInt(w);
+            out.writeInt(h);
+            for (int px : premultipliedPixels(image)) out.writeInt(px);
+        } else if (l instanceof RectBatchLayer batch) {
+            out.writeInt(batch.size());
+            try {
+                batch.forEach((x, y, w, h, argb) -> {
+                    try {
+                        out.writeInt(x);
+                        out.writeInt(y);
+                        out.writeInt(w);
+                        out.writeInt(h);
+                        out.writeInt(argb);
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                });
+            } catch (java.io.UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            out.writeInt(l.getColor().getRGB());
+        }
+    }
+
+    /**
+     * Reads one layer written by writeLayer().
+     */
+    static Layer readLayer(DataInputStream in) throws IOException {
+        Layer layer = readContent(in);
+        int count = in.readInt();
+        if (count > 0) {
+            NavigableMap<Double, Timeline.Keyframe> keyframes = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                double time = in.readDouble();
+                Rectangle bounds = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                keyframes.put(time, new Timeline.Keyframe(bounds, new Color(in.readInt(), true), in.readFloat()));
+            }
+            layer.setKeyframes(keyframes);
+        }
+        return layer;
+    }
+
+    private static Layer readContent(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        float opacity = in.readFloat();
+        BlendMode mode = BlendMode.values()[in.readByte()];
+        if (type == GROUP) {
+            return new LayerGroup(readLayers(in), opacity, mode);
+        }
+        Rectangle r = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        if (type == RASTER) {
+            int w = in.readInt();
+            int h = in.readInt();
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < pixels.length; i++) pixels[i] = in.readInt();
+            return new RasterLayer(image, opacity, mode, r);
+        }
+        if (type == BATCH) {
+            RectBatchLayer.Builder builder = new RectBatchLayer.Builder();
+            for (int i = in.readInt(); i > 0; i--) {
+                builder.add(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            }
+            RectBatchLayer batch = builder.build(opacity, mode);
+            batch.setBounds(r.x, r.y, r.width, r.height);
+            return batch;
+        }
+        return new Layer(new Color(in.readInt(), true), opacity, mode, r);
+    }
+
+    // The image's pixels as premultiplied ARGB, row by row. getRGB()/setRGB() would
+    // un-premultiply and premultiply again, changing faint pixels on every round trip,
+    // so a TYPE_INT_ARGB_PRE image hands over its own array. Other images are converted once
+    private static int[] premultipliedPixels(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB_PRE || image.getRaster().getParent() != null) {
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g = converted.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = converted;
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,99 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LayerEdit is one step in the undo/redo history of a LayerManager.
+ *
+ * Instead of a copy of the whole layer list it only remembers what changed,
+ * as a series of splices: "at this index, these layers were taken out and
+ * these were put in". Undoing or redoing an edit therefore costs as much as
+ * the change itself, no matter how many layers the document has.
+ *
+ * The layers stored in an edit are private copies. Applying the edit puts
+ * fresh copies of them into the list, so later changes to the live layers
+ * never reach back into the history.
+ */
+public class LayerEdit {
+    /**
+     * One change to the list. At index, the removed layers were taken out
+     * and the inserted layers put in their place.
+     */
+    record Splice(int index, List<Layer> removed, List<Layer> inserted) {}
+
+    private final List<Splice> splices = new ArrayList<>();
+
+    /**
+     * Records a change. Splices are replayed in the order they were added,
+     * so each index refers to the list as it was after the previous splice.
+     *
+     * @param index    where the change happened
+     * @param removed  copies of the layers that were taken out
+     * @param inserted copies of the layers that were put in
+     */
+    void add(int index, List<Layer> removed, List<Layer> inserted) {
+        splices.add(new Splice(index, removed, inserted));
+    }
+
+    List<Splice> splices() { return splices; }
+
+    /**
+     * @return true if nothing was recorded
+     */
+    public boolean isEmpty() { return splices.isEmpty(); }
+
+    /**
+     * Makes the change again on the given list.
+     */
+    void redo(List<Layer> layers) {
+        for (Splice s : splices) replace(layers, s.index(), s.removed().size(), s.inserted());
+    }
+
+    /**
+     * Takes the change back on the given list.
+     */
+    void undo(List<Layer> layers) {
+        for (int i = splices.size() - 1; i >= 0; i--) {
+            Splice s = splices.get(i);
+            replace(layers, s.index(), s.inserted().size(), s.removed());
+        }
+    }
+
+    /**
+     * @return an edit that takes this one back, so applying it forwards has
+     * the same effect as undo()
+     */
+    public LayerEdit inverse() {
+        LayerEdit inverse = new LayerEdit();
+        for (int i = splices.size() - 1; i >= 0; i--) {
+            Splice s = splices.get(i);
+            inverse.add(s.index(), s.inserted(), s.removed());
+        }
+        return inverse;
+    }
+
+    /**
+     * If this edit only swapped one layer for another, returns that index so
+     * listeners can update just that layer.
+     *
+     * @return the index of the single changed layer, or -1 if the list itself changed
+     */
+    int singleChangedIndex() {
+        if (splices.size() != 1) return -1;
+        Splice s = splices.get(0);
+        return (s.removed().size() == 1 && s.inserted().size() == 1) ? s.index() : -1;
+    }
+
+    // Swaps count layers at index for copies of the given ones
+    private static void replace(List<Layer> layers, int index, int count, List<Layer> with) {
+        if (count == 1 && with.size() == 1) {
+            layers.set(index, with.get(0).copy());
+            return;
+        }
+        if (count > 0) layers.subList(index, index + count).clear();
+        List<Layer> copies = new ArrayList<>(with.size());
+        for (Layer l : with) copies.add(l.copy());
+        layers.addAll(index, copies);
+    }
+}
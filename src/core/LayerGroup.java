@@ -0,0 +1,202 @@
+package core;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LayerGroup bundles several layers (or other groups) so they can be moved,
+ * resized and blended as one unit. The group has its own opacity and blend
+ * mode: its children are first composited together on a transparent image,
+ * and that image is then blended into the layers below like a single layer.
+ *
+ * Because a group is also a Layer it can sit in the same lists as ordinary
+ * layers, and groups can be nested.
+ *
+ * The flattened image of the children is cached. It is only rendered again
+ * when something inside the group changes: every method that changes the
+ * children (move, resize, setBounds, setColor) bumps a modification count,
+ * and a nested group bumps its own as the change is passed down to it. Code
+ * that changes the children list or a child directly must call invalidate().
+ * Checking the cache is then one comparison, however deep the group is.
+ * Editing one layer in a big scene only recomposites the groups that
+ * contain it, not the whole stack.
+ *
+ * Groups are isolated: children blend with each other, not with the layers
+ * below the group.
+ */
+public class LayerGroup extends Layer {
+    private final List<Layer> children;
+
+    // Bumped whenever the children change. Only written by the thread editing the layers
+    private volatile int modCount;
+    // Cached composite of the children and the modCount it was made at, guarded by this
+    private BufferedImage cache;
+    private int cacheModCount;
+
+    /**
+     * Creates a group from the given layers.
+     *
+     * @param children  the layers in the group, back to front
+     * @param opacity   opacity applied to the whole group (0.0 to 1.0)
+     * @param blendMode how the flattened group blends with lower layers
+     */
+    public LayerGroup(List<Layer> children, float opacity, BlendMode blendMode) {
+        super(Color.WHITE, opacity, blendMode, new Rectangle());
+        this.children = new ArrayList<>(children);
+    }
+
+    /**
+     * @return the layers in this group, back to front. Changing the list
+     * changes the group; call invalidate() afterwards.
+     */
+    public List<Layer> getChildren() { return children; }
+
+    /**
+     * Marks the cached image of the children as out of date. The group's own
+     * mutators do this already; it is only needed after changing the
+     * children list or a child directly.
+     */
+    public void invalidate() {
+        modCount++;
+    }
+
+    /**
+     * Returns the smallest rectangle containing every child. The rectangle is
+     * a new copy, so changing it does not move the group; use move(),
+     * resize() or setBounds() instead.
+     *
+     * @return the bounds of the group
+     */
+    @Override
+    public Rectangle getShape() {
+        Rectangle bounds = null;
+        for (Layer child : children) {
+            if (bounds == null) bounds = new Rectangle(child.getShape());
+            else bounds.add(child.getShape());
+        }
+        return (bounds == null) ? new Rectangle() : bounds;
+    }
+
+    @Override
+    public void move(int dx, int dy) {
+        for (Layer child : children) child.move(dx, dy);
+        invalidate();
+    }
+
+    @Override
+    public void resize(HandlePosition handle, int dx, int dy) {
+        Rectangle after = getShape();
+        resizeRect(after, handle, dx, dy);
+        setBounds(after.x, after.y, after.width, after.height);
+    }
+
+    /**
+     * Scales and moves every child so the group fills the given rectangle.
+     */
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        Rectangle before = getShape();
+        if (before.width == 0 || before.height == 0) return;
+        double sx = width / (double) before.width;
+        double sy = height / (double) before.height;
+        for (Layer child : children) {
+            Rectangle r = child.getShape();
+            child.setBounds(
+                    x + (int) Math.round((r.x - before.x) * sx),
+                    y + (int) Math.round((r.y - before.y) * sy),
+                    Math.max(1, (int) Math.round(r.width * sx)),
+                    Math.max(1, (int) Math.round(r.height * sy)));
+        }
+        invalidate();
+    }
+
+    /**
+     * Recolors every layer inside the group.
+     */
+    @Override
+    public void setColor(Color color) {
+        for (Layer child : children) child.setColor(color);
+        invalidate();
+    }
+
+    /**
+     * Copies the group and all of its children. The copy starts without a
+     * cached image.
+     */
+    @Override
+    public Layer copy() {
+        List<Layer> copies = new ArrayList<>(children.size());
+        for (Layer child : children) copies.add(child.copy());
+        Layer copy = new LayerGroup(copies, getOpacity(), getBlendMode());
+        copy.setKeyframes(getKeyframes());
+        return copy;
+    }
+
+    @Override
+    boolean sameContent(Layer other) {
+        return other instanceof LayerGroup group
+                && Float.floatToIntBits(getOpacity()) == Float.floatToIntBits(group.getOpacity())
+                && getBlendMode() == group.getBlendMode()
+                && java.util.Objects.equals(getKeyframes(), group.getKeyframes())
+                && sameContent(children, group.children);
+    }
+
+    @Override
+    long contentHash() {
+        long h = mix(Float.floatToIntBits(getOpacity()), getBlendMode().ordinal());
+        for (Layer child : children) h = mix(h, child.contentHash());
+        return h;
+    }
+
+    /**
+     * Returns the children composited onto a transparent image, reusing the
+     * cached image when nothing in the group has changed since last time.
+     * The group's own opacity and blend mode are not applied here.
+     *
+     * @param width  width of the image in pixels
+     * @param height height of the image in pixels
+     * @return the flattened children. Shared with later calls, do not modify
+     */
+    synchronized BufferedImage composite(int width, int height) {
+        // Only the children count, since the group's own opacity/mode don't affect the cached image
+        int current = modCount;
+        if (cache == null || cache.getWidth() != width || cache.getHeight() != height || cacheModCount != current) {
+            // Read before rendering, so a change made while rendering is not mistaken for the render's content
+            cacheModCount = current;
+            cache = Renderer.renderGroup(children, width, height);
+        }
+        return cache;
+    }
+
+    /**
+     * Lists every ordinary layer in the given list, opening up groups
+     * (and groups inside groups) in back-to-front order.
+     *
+     * @param layers a list that may contain groups
+     * @return the plain layers, without any groups
+     */
+    public static List<Layer> flatten(List<Layer> layers) {
+        List<Layer> out = new ArrayList<>(layers.size());
+        addLeaves(layers, out);
+        return out;
+    }
+    private static void addLeaves(List<Layer> layers, List<Layer> out) {
+        for (Layer l : layers) {
+            if (l instanceof LayerGroup group) addLeaves(group.children, out);
+            else out.add(l);
+        }
+    }
+
+    /**
+     * @param layers the list to check
+     * @return true if any entry in the list is a group
+     */
+    public static boolean containsGroups(List<Layer> layers) {
+        for (Layer l : layers) {
+            if (l instanceof LayerGroup) return true;
+        }
+        return false;
+    }
+}
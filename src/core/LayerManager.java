@@ -1,79 +1,334 @@
 package core;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
 /**
  * LayerManager keeps track of all layers in the editor. It stores the list of
  * layers, handles selecting and moving layers, and manages undo history.
  *
  * Responsibilities of LayerManager:
  * - Add and remove layers
- * - Track which layer is currently selected
- * - Move or resize the selected layer
- * - Allow selecting a layer by clicking on it
- * - Store previous states so the user can undo changes
+ * - Track which layers are currently selected
+ * - Move, resize, delete, recolor or change the blend mode of the selection
+ * - Set animation keyframes on layers, for Timeline
+ * - Group the selection into a LayerGroup, or ungroup a group again
+ * - Merge layers into a RasterLayer (merge down, merge all, flatten selection)
+ * - Allow selecting layers by clicking, shift-clicking or dragging a box
+ * - Record every change so the user can undo and redo it
+ *
+ * The selection can hold many layers. One of them is the "primary" selected
+ * layer (the last one clicked), which is what getSelectedLayer() returns.
+ * Operations on the selection are applied as one batch: one undo entry and
+ * one change notification, no matter how many layers are selected.
+ *
+ * History is kept as LayerEdits that only hold the layers an action touched,
+ * so undo and redo cost as much as the change, not the whole document. A drag
+ * is recorded as one edit: call beginGesture() when it starts and
+ * endGesture() when the mouse is released.
  *
  * Each layer is stored in order, such that earlier layers appear behind later ones when rendered.
  * The manager does not draw anything, it only maintains data that the Renderer uses.
+ *
+ * Other parts of the app can register a ChangeListener to hear about edits,
+ * for example the live score meter in ChallengeWindow.
  */
 public class LayerManager {
+    /**
+     * Notified whenever the layers change. Listeners are called on the
+     * thread that made the change, which is normally the Swing EDT.
+     */
+    public interface ChangeListener {
+        /**
+         * A single layer was edited in place (moved or resized), or appended
+         * to the end of the list.
+         * @param index the position of the changed layer
+         */
+        void layerChanged(int index);
+        /**
+         * The list itself changed in a way that may shift indices, for example
+         * a removal, an undo or loading a file.
+         */
+        void layersReplaced();
+    }
+    /**
+     * Hears about every change made through this manager as a LayerEdit,
+     * including undo, redo and loading a file. Used by CollabClient to send
+     * local edits to other artists.
+     *
+     * Changes made with applyExternalChange() are not reported, so edits
+     * received from elsewhere are not echoed back.
+     */
+    public interface EditListener {
+        /**
+         * A change was made. The edit's layers are copies and may be kept.
+         * @param edit what changed
+         */
+        void editApplied(LayerEdit edit);
+    }
+
     private List<Layer> layers = new ArrayList<>();
     private int selectedIndex = -1;
-    private java.util.Stack<java.util.List<Layer>> history = new java.util.Stack<>();
-    private void saveState() {
-        java.util.List<Layer> snapshot = new java.util.ArrayList<>();
-        for (Layer l : layers) {
-            snapshot.add(new Layer(
-                    l.getColor(),
-                    l.getOpacity(),
-                    l.getBlendMode(),
-                    new java.awt.Rectangle(l.getShape())
-            ));
+    private final BitSet selection = new BitSet();
+    private final UndoHistory history = new UndoHistory();
+    private final UndoHistory redoHistory = new UndoHistory();
+    // Copies of the layers being dragged, by index, taken when the gesture started
+    private BitSet gestureLayers;
+    private List<Layer> gestureBefore;
+    // For resizing several layers in a gesture: the selection bounds and layer rectangles it
+    // scales from, and the handle movement since then. Scaling from the start each frame
+    // keeps rounding and the minimum size from adding up over the drag
+    private Rectangle resizeBounds;
+    private List<Rectangle> resizeShapes;
+    private Layer.HandlePosition resizeHandle;
+    private int resizeDx;
+    private int resizeDy;
+    private final List<ChangeListener> listeners = new ArrayList<>();
+    private final List<EditListener> editListeners = new ArrayList<>();
+    // Stores a finished action in the history. A new action makes the old redo steps meaningless
+    private void record(LayerEdit edit) {
+        endGesture(); // a drag still in progress goes into the history first
+        if (edit.isEmpty()) return;
+        history.push(edit);
+        redoHistory.clear();
+        fireEditApplied(edit);
+    }
+    private void fireEditApplied(LayerEdit edit) {
+        for (EditListener listener : editListeners) listener.editApplied(edit);
+    }
+    // A copy of one layer, as a list ready for LayerEdit.add
+    private static List<Layer> copyOf(Layer layer) {
+        return List.of(layer.copy());
+    }
+    private void fireLayerChanged(int index) {
+        for (ChangeListener listener : listeners) listener.layerChanged(index);
+    }
+    private void fireLayersReplaced() {
+        for (ChangeListener listener : listeners) listener.layersReplaced();
+    }
+    /**
+     * Registers a listener to be told about every change to the layers.
+     * @param listener the listener to add
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+    /**
+     * Stops notifying a previously registered listener.
+     * @param listener the listener to remove
+     */
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+    /**
+     * Registers a listener to be given every local change as a LayerEdit.
+     * @param listener the listener to add
+     */
+    public void addEditListener(EditListener listener) {
+        editListeners.add(listener);
+    }
+    /**
+     * Stops notifying a previously registered edit listener.
+     * @param listener the listener to remove
+     */
+    public void removeEditListener(EditListener listener) {
+        editListeners.remove(listener);
+    }
+    /**
+     * Lets code outside the manager change the layer list directly, for
+     * example to apply edits received from collaborators. The change is not
+     * recorded for undo and not reported to EditListeners.
+     *
+     * Because the list may shift under them, the undo and redo steps made so
+     * far are dropped. The selection is kept if the change only replaced
+     * layers in place.
+     *
+     * @param change changes the list it is given and returns a LayerEdit describing what it did
+     */
+    public void applyExternalChange(java.util.function.Function<List<Layer>, LayerEdit> change) {
+        endGesture();
+        LayerEdit edit = change.apply(layers);
+        if (edit.isEmpty()) return;
+        history.clear();
+        redoHistory.clear();
+        boolean inPlace = true;
+        for (LayerEdit.Splice s : edit.splices()) {
+            if (s.removed().size() != s.inserted().size()) inPlace = false;
         }
-        history.push(snapshot);
+        if (!inPlace) clearSelection();
+        int index = edit.singleChangedIndex();
+        if (index >= 0) fireLayerChanged(index);
+        else fireLayersReplaced();
     }
     /**
      * Adds a new layer to the canvas and records the action for undo.
      * @param layer the layer to add
      */
     public void addLayer(Layer layer) {
-        saveState();
+        LayerEdit edit = new LayerEdit();
+        edit.add(layers.size(), List.of(), copyOf(layer));
+        record(edit);
         layers.add(layer);
+        fireLayerChanged(layers.size() - 1);
     }
     /**
-     * Removes a layer at the given index and saves the previous state.
+     * Removes a layer at the given index and records the action for undo.
      * @param index the position of the layer to remove
      */
     public void removeLayer(int index) {
         if (index >= 0 && index < layers.size()) {
-            saveState();
+            LayerEdit edit = new LayerEdit();
+            edit.add(index, copyOf(layers.get(index)), List.of());
+            record(edit);
             layers.remove(index);
+            clearSelection();
+            fireLayersReplaced();
         }
     }
     /**
-     * Deletes whichever layer is currently selected.
+     * Deletes every selected layer as one undoable step.
      * After deletion, no layer is selected.
      */
     public void deleteSelectedLayer() {
-        if (selectedIndex >= 0 && selectedIndex < layers.size()) {
-            saveState();
-            layers.remove(selectedIndex);
-            selectedIndex = -1;
+        if (selection.isEmpty()) return;
+        record(removal(selection));
+        // Rebuild the list once instead of removing one by one, which would shift the array each time
+        List<Layer> kept = new ArrayList<>(layers.size() - selection.cardinality());
+        for (int i = 0; i < layers.size(); i++) {
+            if (!selection.get(i)) kept.add(layers.get(i));
+        }
+        layers = kept;
+        clearSelection();
+        fireLayersReplaced();
+    }
+    // Removal of the given layers, recorded front to back so each index is still valid when replayed
+    private LayerEdit removal(BitSet members) {
+        LayerEdit edit = new LayerEdit();
+        for (int i = members.previousSetBit(layers.size() - 1); i >= 0; i = members.previousSetBit(i - 1)) {
+            edit.add(i, copyOf(layers.get(i)), List.of());
         }
+        return edit;
     }
     /**
-     * Restores the most recent saved state from the undo history.
-     * If there is no saved state, nothing happens.
+     * Takes back the most recent action. If there is nothing to undo,
+     * nothing happens.
      */
     public void undo() {
-        if (!history.isEmpty()) {
-            layers = history.pop();
-            selectedIndex = -1;
+        endGesture();
+        LayerEdit edit = history.pop();
+        if (edit != null) {
+            edit.undo(layers);
+            redoHistory.push(edit);
+            afterHistoryStep(edit);
+            fireEditApplied(edit.inverse());
+        }
+    }
+    /**
+     * Makes the most recently undone action again. If nothing was undone
+     * since the last action, nothing happens.
+     */
+    public void redo() {
+        endGesture();
+        LayerEdit edit = redoHistory.pop();
+        if (edit != null) {
+            edit.redo(layers);
+            history.push(edit);
+            afterHistoryStep(edit);
+            fireEditApplied(edit);
+        }
+    }
+    /**
+     * @return true if there is an action to undo
+     */
+    public boolean canUndo() { return !history.isEmpty(); }
+    /**
+     * @return true if there is an undone action to redo
+     */
+    public boolean canRedo() { return !redoHistory.isEmpty(); }
+    private void afterHistoryStep(LayerEdit edit) {
+        clearSelection();
+        int index = edit.singleChangedIndex();
+        if (index >= 0) fireLayerChanged(index);
+        else fireLayersReplaced();
+    }
+    /**
+     * Starts a drag of the selection. Everything moveSelectedLayer() and
+     * resizeSelectedLayer() do until endGesture() becomes one undo step.
+     */
+    public void beginGesture() {
+        endGesture();
+        if (selection.isEmpty()) return;
+        gestureLayers = (BitSet) selection.clone();
+        gestureBefore = new ArrayList<>(gestureLayers.cardinality());
+        for (int i = gestureLayers.nextSetBit(0); i >= 0; i = gestureLayers.nextSetBit(i + 1)) {
+            gestureBefore.add(layers.get(i).copy());
+        }
+        startResize(Layer.HandlePosition.NONE);
+    }
+    /**
+     * @return true between beginGesture() and endGesture()
+     */
+    public boolean isGestureActive() { return gestureLayers != null; }
+    /**
+     * Finishes a drag started with beginGesture() and records the layers it
+     * changed as one undo step. A drag that changed nothing records nothing.
+     */
+    public void endGesture() {
+        if (gestureLayers == null) return;
+        LayerEdit edit = new LayerEdit();
+        int k = 0;
+        for (int i = gestureLayers.nextSetBit(0); i >= 0; i = gestureLayers.nextSetBit(i + 1), k++) {
+            Layer before = gestureBefore.get(k);
+            Layer after = layers.get(i);
+            if (!after.sameContent(before)) {
+                edit.add(i, List.of(before), copyOf(after));
+            }
         }
+        gestureLayers = null;
+        gestureBefore = null;
+        resizeShapes = null;
+        if (edit.isEmpty()) return;
+        history.push(edit);
+        redoHistory.clear();
+        fireEditApplied(edit);
+    }
+    /**
+     * Sets how many bytes of undo history are kept in memory. Older steps
+     * beyond this are moved to a temporary file.
+     * @param bytes the memory budget in bytes
+     */
+    public void setUndoMemoryBudget(long bytes) {
+        history.setMemoryBudget(bytes);
+        redoHistory.setMemoryBudget(bytes);
+    }
+    // Tells edit listeners the whole list is about to be swapped for another
+    private void fireReplacedAll(List<Layer> newLayers) {
+        if (editListeners.isEmpty()) return;
+        List<Layer> inserted = new ArrayList<>(newLayers.size());
+        for (Layer l : newLayers) inserted.add(l.copy());
+        LayerEdit edit = new LayerEdit();
+        edit.add(0, new ArrayList<>(layers), inserted);
+        fireEditApplied(edit);
+    }
+    // Forgets all undo and redo steps, for when the list is replaced wholesale
+    private void clearHistory() {
+        gestureLayers = null;
+        gestureBefore = null;
+        resizeShapes = null;
+        history.clear();
+        redoHistory.clear();
     }
     public List<Layer> getLayers() { return layers; }
     /**
      * Returns the currently selected layer, or null if no layer is selected.
+     * When several layers are selected this is the one clicked last.
      * @return returns the layer the position of selected index. If out of bounds or not found, returns null
      */
     public Layer getSelectedLayer() {
@@ -81,65 +336,383 @@ public class LayerManager {
         return null;
     }
     /**
-     * Selects a layer by list index. Does nothing if the index is invalid.
+     * @return every selected layer, from back to front
+     */
+    public List<Layer> getSelectedLayers() {
+        List<Layer> selected = new ArrayList<>(selection.cardinality());
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            selected.add(layers.get(i));
+        }
+        return selected;
+    }
+    /**
+     * @return how many layers are selected
+     */
+    public int getSelectionCount() { return selection.cardinality(); }
+    /**
+     * @param index a layer index
+     * @return true if the layer at that index is part of the selection
+     */
+    public boolean isSelected(int index) { return selection.get(index); }
+    /**
+     * Returns the smallest rectangle containing every selected layer.
+     * @return the selection bounds, or null if nothing is selected
+     */
+    public Rectangle getSelectionBounds() {
+        Rectangle bounds = null;
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            Rectangle r = layers.get(i).getShape();
+            if (bounds == null) bounds = new Rectangle(r);
+            else bounds.add(r);
+        }
+        return bounds;
+    }
+    /**
+     * Selects a layer by list index, replacing the current selection.
+     * Does nothing if the index is invalid.
      * @param index the index of the layer to select
      */
     public void selectLayer(int index) {
-        if (index >= 0 && index < layers.size()) selectedIndex = index;
+        if (index >= 0 && index < layers.size()) {
+            selection.clear();
+            selection.set(index);
+            selectedIndex = index;
+        }
+    }
+    private void clearSelection() {
+        resizeShapes = null;
+        selection.clear();
+        selectedIndex = -1;
+    }
+    // Topmost layer under the point, or -1
+    private int layerAt(Point p) {
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            if (layers.get(i).getShape().contains(p)) return i;
+        }
+        return -1;
     }
 
     /**
      * Selects the topmost layer under the given screen point.
      * Layers are checked from front to back so the visible layer is chosen.
-     * If no layer is under the point, the selection is cleared.
+     * If the layer is already part of a multi-selection the selection is kept,
+     * so the whole group can be dragged. If no layer is under the point, the
+     * selection is cleared.
      * @param p the point where the user clicked
      */
     public void selectLayerByClick(Point p) {
-        for (int i = layers.size() - 1; i >= 0; i--) {
-            if (layers.get(i).getShape().contains(p)) {
-                selectLayer(i);
-                return;
+        int i = layerAt(p);
+        if (i < 0) {
+            clearSelection(); // clicked empty space
+        } else if (selection.get(i)) {
+            selectedIndex = i;
+        } else {
+            selectLayer(i);
+        }
+    }
+    /**
+     * Adds or removes the topmost layer under the point from the selection,
+     * like a shift-click. Clicking empty space leaves the selection alone.
+     * @param p the point where the user clicked
+     * @return true if a layer was under the point
+     */
+    public boolean toggleLayerByClick(Point p) {
+        int i = layerAt(p);
+        if (i < 0) return false;
+        if (selection.get(i)) {
+            selection.clear(i);
+            if (selectedIndex == i) selectedIndex = selection.previousSetBit(layers.size() - 1);
+        } else {
+            selection.set(i);
+            selectedIndex = i;
+        }
+        return true;
+    }
+    /**
+     * Selects every layer that lies completely inside the given area,
+     * as with a rubber-band drag.
+     * @param area   the dragged selection box
+     * @param extend true to add to the current selection, false to replace it
+     */
+    public void selectLayersIn(Rectangle area, boolean extend) {
+        if (!extend) clearSelection();
+        for (int i = 0; i < layers.size(); i++) {
+            if (area.contains(layers.get(i).getShape())) {
+                selection.set(i);
+                selectedIndex = i;
             }
         }
-        selectedIndex = -1; // clicked empty space
     }
     /**
-     * Moves the selected layer by the given offset.
+     * Moves every selected layer by the given offset.
      * @param dx horizontal movement in pixels
      * @param dy vertical movement in pixels
      */
     public void moveSelectedLayer(int dx, int dy) {
-        Layer l = getSelectedLayer();
-        if (l != null) {
-            l.move(dx, dy);
+        if (selection.isEmpty()) return;
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            layers.get(i).move(dx, dy);
+        }
+        if (resizeShapes != null) {
+            resizeBounds.translate(dx, dy);
+            for (Rectangle r : resizeShapes) r.translate(dx, dy);
+        }
+        fireSelectionChanged();
+    }
+    /**
+     * Resizes the selection by dragging one of its corner handles.
+     * A single layer is resized directly. With several layers, the bounds of
+     * the selection are resized and every layer is scaled and repositioned
+     * to keep its place inside those bounds. During a gesture the layers are
+     * scaled from where they were when it began, so many small steps end up
+     * the same as one big one.
+     * @param handle the handle being dragged
+     * @param dx     horizontal movement in pixels
+     * @param dy     vertical movement in pixels
+     */
+    public void resizeSelectedLayer(Layer.HandlePosition handle, int dx, int dy) {
+        if (selection.isEmpty()) return;
+        if (selection.cardinality() == 1) {
+            layers.get(selection.nextSetBit(0)).resize(handle, dx, dy);
+        } else {
+            // Outside a gesture, when another handle is picked up or the selection changed
+            // underneath, scale from the current geometry
+            if (resizeShapes == null || resizeHandle != handle || resizeShapes.size() != selection.cardinality()) {
+                startResize(handle);
+            }
+            resizeDx += dx;
+            resizeDy += dy;
+            Rectangle before = resizeBounds;
+            Rectangle after = new Rectangle(before);
+            Layer.resizeRect(after, handle, resizeDx, resizeDy);
+            double sx = after.width / (double) before.width;
+            double sy = after.height / (double) before.height;
+            int k = 0;
+            for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1), k++) {
+                Layer l = layers.get(i);
+                Rectangle r = resizeShapes.get(k);
+                int x = after.x + (int) Math.round((r.x - before.x) * sx);
+                int y = after.y + (int) Math.round((r.y - before.y) * sy);
+                int w = Math.max(1, (int) Math.round(r.width * sx));
+                int h = Math.max(1, (int) Math.round(r.height * sy));
+                l.setBounds(x, y, w, h);
+            }
+            if (!isGestureActive()) resizeShapes = null;
         }
+        fireSelectionChanged();
+    }
+    // Takes the selection's current bounds and layer rectangles as the base for resizing
+    private void startResize(Layer.HandlePosition handle) {
+        resizeBounds = getSelectionBounds();
+        resizeShapes = new ArrayList<>(selection.cardinality());
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            resizeShapes.add(new Rectangle(layers.get(i).getShape()));
+        }
+        resizeHandle = handle;
+        resizeDx = 0;
+        resizeDy = 0;
     }
     /**
-     * Checks whether the given point lies on any resize handle of the selected layer.
+     * Gives every selected layer the same color and/or blend mode,
+     * as one undoable step.
+     * @param color the new fill color, or null to keep each layer's color
+     * @param mode  the new blend mode, or null to keep each layer's mode
+     */
+    public void restyleSelectedLayers(Color color, BlendMode mode) {
+        if (selection.isEmpty()) return;
+        endGesture();
+        LayerEdit edit = new LayerEdit();
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            Layer l = layers.get(i);
+            List<Layer> before = copyOf(l);
+            if (color != null) l.setColor(color);
+            if (mode != null) l.setBlendMode(mode);
+            edit.add(i, before, copyOf(l));
+        }
+        record(edit);
+        fireSelectionChanged();
+    }
+    /**
+     * Replaces the animation keyframes of some layers, as one undoable step.
+     * Used by Timeline.
+     * @param changes the new keyframes by layer index; null stops a layer being animated
+     */
+    void setKeyframes(Map<Integer, NavigableMap<Double, Timeline.Keyframe>> changes) {
+        endGesture();
+        LayerEdit edit = new LayerEdit();
+        for (Map.Entry<Integer, NavigableMap<Double, Timeline.Keyframe>> e : new TreeMap<>(changes).entrySet()) {
+            Layer l = layers.get(e.getKey());
+            if (Objects.equals(l.getKeyframes(), e.getValue())) continue;
+            List<Layer> before = copyOf(l);
+            l.setKeyframes(e.getValue());
+            edit.add(e.getKey(), before, copyOf(l));
+        }
+        record(edit);
+        int index = edit.singleChangedIndex();
+        if (index >= 0) fireLayerChanged(index);
+        else if (!edit.isEmpty()) fireLayersReplaced();
+    }
+    /**
+     * Puts every selected layer into a new LayerGroup, as one undoable step.
+     * The group takes the place of the frontmost selected layer and
+     * becomes the selection.
+     */
+    public void groupSelectedLayers() {
+        if (selection.isEmpty()) return;
+        replaceLayers((BitSet) selection.clone(), new LayerGroup(getSelectedLayers(), 1.0f, BlendMode.NORMAL));
+    }
+    /**
+     * Merges the primary selected layer with the layer directly below it
+     * into one RasterLayer, as one undoable step.
+     *
+     * Merging never changes how the drawing looks. When the merged layers
+     * blend with what lies below them (for example a MULTIPLY layer), the
+     * raster is baked over everything underneath inside its bounds, so it
+     * keeps those pixels instead of losing the interaction. If neither way
+     * renders exactly the same, the layers are left alone.
+     *
+     * @return false if the layers could not be merged without changing the image
+     */
+    public boolean mergeDown() {
+        if (selectedIndex < 1) return true;
+        BitSet pair = new BitSet();
+        pair.set(selectedIndex - 1, selectedIndex + 1);
+        return merge(pair);
+    }
+    /**
+     * Merges every layer into a single RasterLayer, as one undoable step.
+     * There is no per-layer visibility, so this always takes all layers.
+     *
+     * @return false if the layers could not be merged without changing the image
+     */
+    public boolean mergeAll() {
+        if (layers.size() < 2) return true;
+        BitSet all = new BitSet();
+        all.set(0, layers.size());
+        return merge(all);
+    }
+    /**
+     * Merges the selected layers into one RasterLayer, as one undoable step.
+     * The result takes the place of the frontmost selected layer.
+     *
+     * @return false if the layers could not be merged without changing the image
+     */
+    public boolean flattenSelection() {
+        if (selection.cardinality() < 2) return true;
+        return merge((BitSet) selection.clone());
+    }
+    // Bakes the given layers into a raster covering just their bounds. The layers alone are baked
+    // when that renders the same; otherwise everything beneath them is baked in as well.
+    // False if neither renders the same, in which case nothing changes
+    private boolean merge(BitSet members) {
+        List<Layer> parts = new ArrayList<>(members.cardinality());
+        Rectangle bounds = null;
+        for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+            Layer l = layers.get(i);
+            parts.add(l);
+            if (bounds == null) bounds = new Rectangle(l.getShape());
+            else bounds.add(l.getShape());
+        }
+        if (bounds == null || bounds.isEmpty()) return true;
+        // Layers above the frontmost member are the same before and after, so only the stack up to it is compared
+        int front = members.previousSetBit(layers.size() - 1);
+        List<Layer> stack = layers.subList(0, front + 1);
+        BufferedImage expected = Renderer.renderTile(stack, Renderer.WIDTH, Renderer.HEIGHT, bounds);
+        RasterLayer raster = new RasterLayer(Renderer.renderRegion(parts, bounds), 1.0f, BlendMode.NORMAL, bounds);
+        if (!rendersAs(expected, stack, members, raster, bounds)) {
+            // The members blend with what is below them: keep the finished pixels instead
+            raster = new RasterLayer(expected, 1.0f, BlendMode.NORMAL, new Rectangle(bounds));
+            if (!rendersAs(expected, stack, members, raster, bounds)) return false;
+        }
+        replaceLayers(members, raster);
+        return true;
+    }
+    // True if the stack with the members swapped for the raster renders exactly the expected pixels
+    private static boolean rendersAs(BufferedImage expected, List<Layer> stack, BitSet members,
+                                     RasterLayer raster, Rectangle bounds) {
+        List<Layer> merged = new ArrayList<>(stack.size());
+        for (int i = 0; i < stack.size(); i++) {
+            if (!members.get(i)) merged.add(stack.get(i));
+        }
+        merged.add(raster);
+        BufferedImage actual = Renderer.renderTile(merged, Renderer.WIDTH, Renderer.HEIGHT, bounds);
+        return Arrays.equals(((DataBufferInt) expected.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) actual.getRaster().getDataBuffer()).getData());
+    }
+    // Removes the given layers and puts the replacement where the frontmost of them was, then selects it.
+    // Recorded as one undo step
+    private void replaceLayers(BitSet members, Layer replacement) {
+        int count = members.cardinality();
+        int insertAt = members.previousSetBit(layers.size() - 1) - (count - 1);
+        LayerEdit edit = removal(members);
+        edit.add(insertAt, List.of(), copyOf(replacement));
+        record(edit);
+        List<Layer> kept = new ArrayList<>(layers.size() - count + 1);
+        for (int i = 0; i < layers.size(); i++) {
+            if (!members.get(i)) kept.add(layers.get(i));
+        }
+        kept.add(insertAt, replacement);
+        layers = kept;
+        selectLayer(insertAt);
+        fireLayersReplaced();
+    }
+    /**
+     * Replaces the primary selected layer, if it is a group, by its children,
+     * as one undoable step. The children become the selection.
+     */
+    public void ungroupSelectedLayer() {
+        if (!(getSelectedLayer() instanceof LayerGroup group)) return;
+        int at = selectedIndex;
+        LayerEdit edit = new LayerEdit();
+        List<Layer> children = new ArrayList<>(group.getChildren().size());
+        for (Layer child : group.getChildren()) children.add(child.copy());
+        edit.add(at, copyOf(group), children);
+        record(edit);
+        layers.remove(at);
+        layers.addAll(at, group.getChildren());
+        clearSelection();
+        selection.set(at, at + group.getChildren().size());
+        selectedIndex = at;
+        fireLayersReplaced();
+    }
+    // One notification for the whole batch: per-layer for a single layer, a full refresh otherwise
+    private void fireSelectionChanged() {
+        if (selection.cardinality() == 1) fireLayerChanged(selection.nextSetBit(0));
+        else fireLayersReplaced();
+    }
+    /**
+     * Checks whether the given point lies on any resize handle of the selection.
+     * With several layers selected the handles sit on the selection bounds.
      * @param p the location to test
      * @return which handle is being hovered, or NONE if none match
      */
     public Layer.HandlePosition getHandleAt(Point p) {
-        Layer selected = getSelectedLayer();
-        if (selected != null) {
-            return selected.getHandleAt(p);
+        Rectangle bounds = getSelectionBounds();
+        if (bounds != null) {
+            return Layer.getHandleAt(bounds, p);
         }
         return Layer.HandlePosition.NONE;
     }
     /**
      * Replaces all layers with a new list, usually after loading a file.
-     * Clears the current selection.
+     * Clears the current selection and the undo history.
      * @param newLayers the new list of layers
      */
     public void setLayers(List<Layer> newLayers) {
+        clearHistory();
+        fireReplacedAll(newLayers);
         this.layers = newLayers;
-        selectedIndex = -1;
+        clearSelection();
+        fireLayersReplaced();
     }
     /**
-     * Removes all layers and clears the selection.
+     * Removes all layers and clears the selection and the undo history.
      */
     public void clear() {
+        clearHistory();
+        fireReplacedAll(List.of());
         layers.clear();
-        selectedIndex = -1;
+        clearSelection();
+        fireLayersReplaced();
     }
 }
@@ -3,7 +3,12 @@ package core;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.Stack;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The Main class represents the primary drawing canvas of the Spectral Layers application.
@@ -11,12 +16,33 @@ import java.util.Stack;
  * Main also works interacts with ToolbarPanel and LayerManager to allow users to interact with the app.
  */
 public class Main extends JPanel {
+    // Run with -Dspectral.startupTiming=true to print how long the first frame took to appear
+    private static final boolean REPORT_STARTUP = Boolean.getBoolean("spectral.startupTiming");
+    private boolean firstFrameReported = false;
     private LayerManager manager;
     private Point lastMouse;
     private Layer.HandlePosition activeHandle = Layer.HandlePosition.NONE;
     private Layer copiedLayer = null;
-    // Simple undo stack (stores deleted layers)
-    private final Stack<Layer> undoStack = new Stack<>();
+    // Drag movement collected since the last frame, applied once per frame by frameTimer
+    private int pendingDx = 0;
+    private int pendingDy = 0;
+    private final Timer frameTimer;
+    // Last rendered composite of all layers, reused until the layers change
+    private BufferedImage composite;
+    private boolean compositeDirty = true;
+    // Refinement in progress when the scene is too big to render in one go, else null
+    private ProgressiveRender progressive;
+    // Accelerated copy of composite that is blitted to the screen
+    private VolatileImage backBuffer;
+    private boolean backBufferStale = true;
+    // Rubber band selection: where the drag started and the current box, null when not active
+    private Point bandStart;
+    private Rectangle band;
+    // Animation: keyframes, the playback timer, and whether the canvas shows a frame of it
+    private final Timeline timeline;
+    private final Timer playTimer;
+    private long playStart;
+    private boolean showingFrame = false;
 
     /**
      * Main() constructs the main drawing canvas, initializes mouse and keyboard listeners,
@@ -25,6 +51,26 @@ public class Main extends JPanel {
      */
     public Main() {
         manager = new LayerManager();
+        frameTimer = new Timer(frameIntervalMillis(), e -> applyPendingDrag());
+        frameTimer.setCoalesce(true);
+        timeline = new Timeline(manager);
+        playTimer = new Timer(frameIntervalMillis(), e -> showPlaybackFrame());
+        playTimer.setCoalesce(true);
+        // Any change to the layers means the cached composite must be rendered again.
+        // A still animation frame is left for the edited layers; playback picks them up itself
+        manager.addChangeListener(new LayerManager.ChangeListener() {
+            @Override
+            public void layerChanged(int index) {
+                compositeDirty = true;
+                if (!playTimer.isRunning()) showingFrame = false;
+            }
+
+            @Override
+            public void layersReplaced() {
+                compositeDirty = true;
+                if (!playTimer.isRunning()) showingFrame = false;
+            }
+        });
 
         // Initial layers for testing
 //        manager.addLayer(new Layer(new Color(0, 255, 255, 180), 0.8f, BlendMode.MULTIPLY, new Rectangle(150, 150, 250, 250))); // Cyan
@@ -40,40 +86,61 @@ public class Main extends JPanel {
             public void mousePressed(MouseEvent e) {
                 requestFocusInWindow(); // regain focus after clicking toolbar
                 lastMouse = e.getPoint();
+                // Clicking an animation frame goes back to editing the layers themselves
+                if (showingFrame) stopPlayback();
 
-                // Step 1: Check for resize handle on selected layer
+                // Step 1: Check for resize handle on the selection
                 activeHandle = manager.getHandleAt(e.getPoint());
 
-                // Step 2: If not resizing, check if clicking on a layer body
+                // Step 2: If not resizing, check if clicking on a layer body.
+                // Shift-click adds/removes layers, empty space starts a selection box
                 if (activeHandle == Layer.HandlePosition.NONE) {
-                    manager.selectLayerByClick(e.getPoint());
+                    boolean hit;
+                    if (e.isShiftDown()) {
+                        hit = manager.toggleLayerByClick(e.getPoint());
+                    } else {
+                        manager.selectLayerByClick(e.getPoint());
+                        hit = manager.getSelectedLayer() != null;
+                    }
+                    if (!hit) {
+                        bandStart = e.getPoint();
+                    }
                 }
+                // Everything the drag does until release becomes one undo step
+                if (bandStart == null) manager.beginGesture();
                 repaint();
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
+                applyPendingDrag(); // don't lose the last partial frame
+                frameTimer.stop();
+                manager.endGesture();
                 activeHandle = Layer.HandlePosition.NONE;
+                if (bandStart != null) {
+                    if (band != null) manager.selectLayersIn(band, e.isShiftDown());
+                    bandStart = null;
+                    band = null;
+                    repaint();
+                }
             }
         });
 
+        // Mouse events can arrive much faster than the screen refreshes, so drags only
+        // add up the movement here and frameTimer applies it once per frame
         addMouseMotionListener(new MouseAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (manager.getSelectedLayer() != null) {
-                    int dx = e.getX() - lastMouse.x;
-                    int dy = e.getY() - lastMouse.y;
-
-                    if (activeHandle != Layer.HandlePosition.NONE) {
-                        // resize
-                        manager.getSelectedLayer().resize(activeHandle, dx, dy);
-                    } else {
-                        // move
-                        manager.moveSelectedLayer(dx, dy);
-                    }
-
-                    lastMouse = e.getPoint();
+                if (bandStart != null) {
+                    // Selection box only changes the overlay, the composite stays cached
+                    band = new Rectangle(bandStart);
+                    band.add(e.getPoint());
                     repaint();
+                } else if (manager.getSelectedLayer() != null) {
+                    pendingDx += e.getX() - lastMouse.x;
+                    pendingDy += e.getY() - lastMouse.y;
+                    lastMouse = e.getPoint();
+                    if (!frameTimer.isRunning()) frameTimer.start();
                 }
             }
         });
@@ -86,47 +153,46 @@ public class Main extends JPanel {
 
                 // Backspace to delete layer
                 if (key == KeyEvent.VK_BACK_SPACE) {
-                    Layer selected = manager.getSelectedLayer();
-                    if (selected != null) {
-                        undoStack.push(selected); // store for undo
+                    // Deleting saves an undo step in the manager, so Ctrl+Z brings the layers back
+                    if (manager.getSelectedLayer() != null) {
                         manager.deleteSelectedLayer();
                         repaint();
                     }
                 }
 
-                // Ctrl+Z to undo actions
-                if (e.isControlDown() && key == KeyEvent.VK_Z) {
-                    if (!undoStack.isEmpty()) {
-                        Layer restored = undoStack.pop();
-                        manager.addLayer(restored);
-                        manager.selectLayer(manager.getLayers().size() - 1); // select it again
-                        repaint();
-                    }
+                // Ctrl+G to group the selection, Ctrl+Shift+G to ungroup
+                if (e.isControlDown() && key == KeyEvent.VK_G) {
+                    if (e.isShiftDown()) manager.ungroupSelectedLayer();
+                    else manager.groupSelectedLayers();
+                    repaint();
                 }
 
+                // Ctrl+E merges down (or flattens a multi-selection), Ctrl+Shift+E merges everything
+                if (e.isControlDown() && key == KeyEvent.VK_E) {
+                    boolean merged;
+                    if (e.isShiftDown()) merged = manager.mergeAll();
+                    else if (manager.getSelectionCount() > 1) merged = manager.flattenSelection();
+                    else merged = manager.mergeDown();
+                    repaint();
+                    if (!merged) {
+                        JOptionPane.showMessageDialog(Main.this, "Could not merge without changing the image.");
+                    }
+                }
 
                 // Add this to your existing key listener:
                 if (e.isControlDown() && key == KeyEvent.VK_C) {
                     Layer selected = manager.getSelectedLayer();
                     if (selected != null) {
-                        copiedLayer = selected; // Just store reference
+                        // A copy, so later edits to the layer don't change what gets pasted
+                        copiedLayer = selected.copy();
                     }
                 }
 
                 if (e.isControlDown() && key == KeyEvent.VK_V) {
                     if (copiedLayer != null) {
-                        // Create a copy with offset
-                        Layer pastedLayer = new Layer(
-                                copiedLayer.getColor(),
-                                copiedLayer.getOpacity(),
-                                copiedLayer.getBlendMode(),
-                                new Rectangle(
-                                        copiedLayer.getShape().x + 20,
-                                        copiedLayer.getShape().y + 20,
-                                        copiedLayer.getShape().width,
-                                        copiedLayer.getShape().height
-                                )
-                        );
+                        // Copy again with an offset, which keeps groups, raster pixels and rectangle batches intact
+                        Layer pastedLayer = copiedLayer.copy();
+                        pastedLayer.move(20, 20);
                         manager.addLayer(pastedLayer);
                         repaint();
                     }
@@ -139,8 +205,14 @@ public class Main extends JPanel {
         addKeyListener(new java.awt.event.KeyAdapter() {
             @Override
             public void keyPressed(java.awt.event.KeyEvent e) {
-                if ((e.isControlDown() || e.isMetaDown()) && e.getKeyCode() == java.awt.event.KeyEvent.VK_Z) {
-                    manager.undo();
+                boolean ctrl = e.isControlDown() || e.isMetaDown();
+                // Ctrl+Z undoes, Ctrl+Shift+Z or Ctrl+Y redoes
+                if (ctrl && e.getKeyCode() == java.awt.event.KeyEvent.VK_Z) {
+                    if (e.isShiftDown()) manager.redo();
+                    else manager.undo();
+                    repaint();
+                } else if (ctrl && e.getKeyCode() == java.awt.event.KeyEvent.VK_Y) {
+                    manager.redo();
                     repaint();
                 }
             }
@@ -149,23 +221,213 @@ public class Main extends JPanel {
     }
 
     /**
-     * The paintComponent(Graphics g) function renders all layers using the Renderer
-     * and draws resize handles on the currently selected layer. This method is automatically run
-     * when the canvas is edited.
+     * Applies the drag movement collected since the last frame to the selected
+     * layer in one step and repaints once. Stops the frame timer when
+     * there is nothing left to apply, so an idle canvas does no work.
+     */
+    private void applyPendingDrag() {
+        if (pendingDx == 0 && pendingDy == 0) {
+            frameTimer.stop();
+            return;
+        }
+        if (manager.getSelectedLayer() != null) {
+            if (activeHandle != Layer.HandlePosition.NONE) {
+                // resize
+                manager.resizeSelectedLayer(activeHandle, pendingDx, pendingDy);
+            } else {
+                // move
+                manager.moveSelectedLayer(pendingDx, pendingDy);
+            }
+            repaint();
+        }
+        pendingDx = 0;
+        pendingDy = 0;
+    }
+
+    /**
+     * Works out how often drags should be applied, based on the refresh rate
+     * of the main display. Falls back to 60 frames per second when the rate
+     * is unknown or there is no display.
+     *
+     * @return the time between frames in milliseconds
+     */
+    private static int frameIntervalMillis() {
+        int hz = 60;
+        if (!GraphicsEnvironment.isHeadless()) {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN) hz = rate;
+        }
+        return Math.max(1, 1000 / hz);
+    }
+
+    /**
+     * The paintComponent(Graphics g) function draws the composited layers
+     * and the resize handles on the currently selected layer. This method is
+     * automatically run when the canvas is edited.
+     *
+     * The composite is only re-rendered when the layers changed, and even
+     * then CompositeCache hands back the old image if the drawing looks
+     * like one shown before, for example after an undo. Frames in the
+     * middle of a drag are rendered directly, since they are never shown
+     * again and would only push useful images out of the cache. Scenes with
+     * very many rectangles are drawn through ProgressiveRender instead. Repaints
+     * caused by the window being uncovered or the selection changing just
+     * blit the cached image, kept in a VolatileImage so the copy can
+     * happen on the graphics card, and draw the handles on top.
      *
      * @param g the Graphics context used for drawing
      */
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
-        Renderer renderer = new Renderer((Graphics2D) g);
-        renderer.draw(manager.getLayers());
+        if (showingFrame) {
+            // composite holds an animation frame, nothing to edit on it
+            drawBackBuffer(g);
+            return;
+        }
+        if (composite == null || compositeDirty) {
+            if (progressive != null) progressive.cancel();
+            progressive = null;
+            if (ProgressiveRender.isHeavy(manager.getLayers())) {
+                // Quick preview now, sharper tiles arrive in the background
+                progressive = new ProgressiveRender(manager.getLayers(), Renderer.WIDTH, Renderer.HEIGHT, () -> {
+                    backBufferStale = true;
+                    repaint();
+                });
+                composite = progressive.getImage();
+            } else if (manager.isGestureActive()) {
+                composite = Renderer.render(manager.getLayers(), Renderer.WIDTH, Renderer.HEIGHT);
+            } else {
+                composite = CompositeCache.render(manager.getLayers(), Renderer.WIDTH, Renderer.HEIGHT);
+            }
+            compositeDirty = false;
+            backBufferStale = true;
+        }
+        drawBackBuffer(g);
 
         // draw resize handles for selected layer. White corner thingys
+        Graphics2D g2d = (Graphics2D) g;
         Layer selected = manager.getSelectedLayer();
-        if (selected != null) {
-            selected.drawHandles((Graphics2D) g);
+        if (manager.getSelectionCount() > 1) {
+            // Outline every selected layer, with handles on the bounds of the whole group
+            g2d.setColor(Color.DARK_GRAY);
+            for (Layer l : manager.getSelectedLayers()) {
+                g2d.draw(l.getShape());
+            }
+            Layer.drawHandles(g2d, manager.getSelectionBounds());
+        } else if (selected != null) {
+            selected.drawHandles(g2d);
         }
+
+        // Rubber band selection box
+        if (band != null) {
+            g2d.setColor(new Color(0, 100, 200, 40));
+            g2d.fill(band);
+            g2d.setColor(new Color(0, 100, 200));
+            g2d.draw(band);
+        }
+
+        if (REPORT_STARTUP && !firstFrameReported) {
+            firstFrameReported = true;
+            ProcessHandle.current().info().startInstant().ifPresent(start ->
+                    System.out.println("First frame " + Duration.between(start, Instant.now()).toMillis() + " ms after launch"));
+        }
+    }
+
+    /**
+     * Copies the cached composite to the screen through the accelerated back
+     * buffer. VolatileImages can lose their contents at any time (for
+     * example when the display mode changes), so they are checked and
+     * refilled from the composite when needed.
+     *
+     * @param g the Graphics context used for drawing
+     */
+    private void drawBackBuffer(Graphics g) {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc == null) {
+            // Not on screen yet, nothing to accelerate
+            g.drawImage(composite, 0, 0, null);
+            return;
+        }
+        do {
+            int status = (backBuffer == null) ? VolatileImage.IMAGE_INCOMPATIBLE : backBuffer.validate(gc);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                backBuffer = gc.createCompatibleVolatileImage(composite.getWidth(), composite.getHeight());
+            }
+            // A restored surface holds garbage until it is filled again
+            if (status != VolatileImage.IMAGE_OK || backBufferStale) {
+                Graphics2D gBuffer = backBuffer.createGraphics();
+                gBuffer.drawImage(composite, 0, 0, null);
+                gBuffer.dispose();
+                backBufferStale = false;
+            }
+            g.drawImage(backBuffer, 0, 0, null);
+        } while (backBuffer.contentsLost());
+    }
+
+    /**
+     * Plays the animation in a loop at the display's frame rate until
+     * stopPlayback() is called or the canvas is clicked. Each frame's render
+     * time goes into the timeline's frame times.
+     */
+    public void play() {
+        if (timeline.getDuration() <= 0) return;
+        playStart = System.nanoTime();
+        showingFrame = true;
+        playTimer.start();
+    }
+
+    /**
+     * Shows the animation as it is at one point in time, without playing.
+     *
+     * @param time seconds from the start of the animation
+     */
+    public void showTime(double time) {
+        playTimer.stop();
+        showFrame(time);
+    }
+
+    /**
+     * Stops playback and shows the layers as they are again.
+     */
+    public void stopPlayback() {
+        playTimer.stop();
+        showingFrame = false;
+        compositeDirty = true;
+        repaint();
+    }
+
+    /**
+     * @return true while the animation is playing
+     */
+    public boolean isPlaying() { return playTimer.isRunning(); }
+
+    private void showPlaybackFrame() {
+        double duration = timeline.getDuration();
+        if (duration <= 0) {
+            stopPlayback();
+            return;
+        }
+        long t0 = System.nanoTime();
+        showFrame(((t0 - playStart) / 1e9) % duration);
+        timeline.recordFrameTime(System.nanoTime() - t0);
+    }
+
+    private void showFrame(double time) {
+        if (progressive != null) progressive.cancel();
+        progressive = null;
+        composite = timeline.renderFrame(time, Renderer.WIDTH, Renderer.HEIGHT);
+        showingFrame = true;
+        backBufferStale = true;
+        repaint();
+    }
+
+    /**
+     * @return the keyframes of this canvas's layers
+     */
+    public Timeline getTimeline() {
+        return timeline;
     }
 
     /**
@@ -179,36 +441,61 @@ public class Main extends JPanel {
 
     /**
      * Launches the Spectral Layers app. This initializes the main window,
-     * displays the welcome page, and sets up the canvas and toolbar.
+     * sets up the canvas and toolbar, and then displays the welcome page
+     * on top of it.
+     *
+     * The welcome page is modal, so it used to hold up building the editor
+     * until it was closed. Now the editor is built and shown first and the
+     * welcome page opens over it, while the rendering code is loaded on a
+     * background thread in the meantime.
      *
      * @param args unused command-line arguments
      */
     public static void main(String[] args) {
+        Thread warmUp = new Thread(Main::warmUp, "warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame("Spectral Layers");
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             frame.setSize(1000, 600);
 
-            WelcomePage welcome = new WelcomePage(frame); // null parent since no main window yet
-            welcome.setVisible(true);
-
             // Create canvas and toolbar
             Main canvas = new Main();
             canvas.setPreferredSize(new Dimension(780, 600)); // sets the size of the canvas, essential
             ToolbarPanel toolbar = new ToolbarPanel(canvas.getManager(), canvas::repaint);
+            TimelinePanel timelinePanel = new TimelinePanel(canvas);
 
             // Wrap them in a parent panel using BorderLayout
             JPanel rootPanel = new JPanel(new BorderLayout());
             rootPanel.add(canvas, BorderLayout.CENTER);
             rootPanel.add(toolbar, BorderLayout.EAST);
+            rootPanel.add(timelinePanel, BorderLayout.SOUTH);
 
             frame.setContentPane(rootPanel);
             frame.pack(); // respects preferred sizes
             frame.setLocationRelativeTo(null);
             frame.setVisible(true);
 
-            // Ensure focus returns to canvas so Backspace works
-            SwingUtilities.invokeLater(canvas::requestFocusInWindow);
+            // Open the welcome page once the editor is on screen, then give focus
+            // back to the canvas so Backspace works
+            SwingUtilities.invokeLater(() -> {
+                new WelcomePage(frame).setVisible(true);
+                canvas.requestFocusInWindow();
+            });
         });
     }
+
+    /**
+     * Renders a tiny scene with every blend mode, so the renderer and blend
+     * kernels are loaded and warmed up before the canvas needs them.
+     */
+    private static void warmUp() {
+        List<Layer> layers = new ArrayList<>();
+        for (BlendMode mode : BlendMode.values()) {
+            layers.add(new Layer(new Color(200, 100, 50, 180), 0.8f, mode, new Rectangle(0, 0, 32, 32)));
+        }
+        Renderer.render(layers, 32, 32);
+    }
 }
@@ -0,0 +1,200 @@
+package core;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * PerceptualScorer compares two drawings by how they look instead of how they
+ * were built. Both layer lists are rendered with the Renderer and the
+ * finished images are compared pixel by pixel using the CIE76 color
+ * difference (Delta E) in Lab space. Only pixels inside some layer of either
+ * drawing are averaged: the white background around small layers is always
+ * the same and would otherwise push every score towards 1.
+ *
+ * This means two drawings that look the same but use different layers,
+ * for example a MULTIPLY layer against a NORMAL layer with the pre-mixed
+ * color, get the same high score.
+ *
+ * To keep it fast the images are compared coarse to fine: first at a quarter
+ * of the canvas size, then half, then full. As soon as two levels agree to
+ * within CONVERGED the finer levels are skipped. Each comparison is split
+ * into row bands that are processed in parallel on the common pool, unless
+ * the caller asks for a sequential comparison to stay on its own thread.
+ */
+public class PerceptualScorer {
+    // Render sizes tried from coarse to fine, as divisors of the canvas size
+    private static final int[] LEVELS = {4, 2, 1};
+    // Two levels whose scores differ by less than this are considered settled
+    private static final double CONVERGED = 0.01;
+    // Average Delta E at which the score reaches 0. About 2.3 is "just noticeable"
+    private static final double MAX_DELTA_E = 40.0;
+    private static final int BAND_ROWS = 16;
+
+    // sRGB channel value to linear light, precomputed for all 256 values
+    private static final double[] LINEAR = new double[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (c <= 0.04045) ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    private PerceptualScorer() {}
+
+    /**
+     * Renders both drawings and compares how similar they look.
+     *
+     * @param target the list of layers that define the correct solution
+     * @param player the list of layers drawn by the user
+     * @return a similarity score from 0.0 (nothing alike) to 1.0 (identical)
+     */
+    public static double compare(List<Layer> target, List<Layer> player) {
+        return compare(target, player, true);
+    }
+
+    /**
+     * Same as compare(target, player), but with parallel false all the work
+     * happens on the calling thread. Used by RenderService, whose bounded
+     * worker pool must not spill work onto the common pool.
+     *
+     * @param parallel true to render and compare on several threads
+     * @return a similarity score from 0.0 (nothing alike) to 1.0 (identical)
+     */
+    static double compare(List<Layer> target, List<Layer> player, boolean parallel) {
+        double previous = -1;
+        double score = 0;
+        for (int divisor : LEVELS) {
+            int w = Renderer.WIDTH / divisor;
+            int h = Renderer.HEIGHT / divisor;
+            BufferedImage a;
+            BufferedImage b;
+            if (parallel) {
+                // Render the two drawings at the same time
+                CompletableFuture<BufferedImage> future = CompletableFuture.supplyAsync(() -> CompositeCache.render(target, w, h));
+                b = CompositeCache.render(player, w, h);
+                a = future.join();
+            } else {
+                a = CompositeCache.render(target, w, h);
+                b = CompositeCache.render(player, w, h);
+            }
+            score = compareImages(a, b, coverage(target, player, w, h), parallel);
+            if (previous >= 0 && Math.abs(score - previous) < CONVERGED) break;
+            previous = score;
+        }
+        return score;
+    }
+
+    /**
+     * Marks the pixels of a w x h render that lie inside the rectangle of any
+     * layer in either drawing. Groups count by their children, so the gaps
+     * between them stay unmarked.
+     *
+     * @return one flag per pixel, row by row, or null if neither drawing covers anything
+     */
+    static boolean[] coverage(List<Layer> target, List<Layer> player, int w, int h) {
+        // Difference grid: +1/-1 at the corners of every rectangle, summed up afterwards
+        int[] grid = new int[(w + 1) * (h + 1)];
+        boolean any = addCoverage(target, grid, w, h) | addCoverage(player, grid, w, h);
+        if (!any) return null;
+        boolean[] covered = new boolean[w * h];
+        int[] row = new int[w + 1];
+        for (int y = 0; y < h; y++) {
+            int sum = 0;
+            for (int x = 0; x < w; x++) {
+                row[x] += grid[y * (w + 1) + x];
+                sum += row[x];
+                covered[y * w + x] = sum > 0;
+            }
+        }
+        return covered;
+    }
+    private static boolean addCoverage(List<Layer> layers, int[] grid, int w, int h) {
+        boolean any = false;
+        for (Layer l : layers) {
+            if (l instanceof LayerGroup group) {
+                any |= addCoverage(group.getChildren(), grid, w, h);
+                continue;
+            }
+            Rectangle r = l.getShape();
+            int x0 = Math.max(0, (int) Math.floor(r.x * (double) w / Renderer.WIDTH));
+            int y0 = Math.max(0, (int) Math.floor(r.y * (double) h / Renderer.HEIGHT));
+            int x1 = Math.min(w, (int) Math.ceil((r.x + r.width) * (double) w / Renderer.WIDTH));
+            int y1 = Math.min(h, (int) Math.ceil((r.y + r.height) * (double) h / Renderer.HEIGHT));
+            if (x0 >= x1 || y0 >= y1) continue;
+            grid[y0 * (w + 1) + x0]++;
+            grid[y0 * (w + 1) + x1]--;
+            grid[y1 * (w + 1) + x0]--;
+            grid[y1 * (w + 1) + x1]++;
+            any = true;
+        }
+        return any;
+    }
+
+    /**
+     * Compares two images of the same size using the average Delta E
+     * between matching pixels that are marked in covered. Alpha is ignored
+     * since rendered images always sit on an opaque white background.
+     *
+     * @param a the first image, an opaque int-packed render
+     * @param b the second image, an opaque int-packed render, same size as a
+     * @param covered the pixels to average over, from coverage(), or null for none
+     * @param parallel true to process the row bands on several threads
+     * @return a similarity score from 0.0 to 1.0; 1.0 when no pixel is covered
+     */
+    static double compareImages(BufferedImage a, BufferedImage b, boolean[] covered, boolean parallel) {
+        if (covered == null) return 1.0; // two blank canvases
+        int width = a.getWidth();
+        int height = a.getHeight();
+        int[] pa = ((DataBufferInt) a.getRaster().getDataBuffer()).getData();
+        int[] pb = ((DataBufferInt) b.getRaster().getDataBuffer()).getData();
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+
+        IntStream rows = IntStream.range(0, bands);
+        if (parallel) rows = rows.parallel();
+        double total = rows.mapToDouble(band -> {
+            int start = band * BAND_ROWS * width;
+            int end = Math.min(height, (band + 1) * BAND_ROWS) * width;
+            double[] labA = new double[3];
+            double[] labB = new double[3];
+            double sum = 0;
+            for (int i = start; i < end; i++) {
+                if (!covered[i] || (pa[i] & 0xffffff) == (pb[i] & 0xffffff)) continue;
+                toLab(pa[i], labA);
+                toLab(pb[i], labB);
+                double dl = labA[0] - labB[0];
+                double da = labA[1] - labB[1];
+                double db = labA[2] - labB[2];
+                sum += Math.sqrt(dl * dl + da * da + db * db);
+            }
+            return sum;
+        }).sum();
+
+        long count = 0;
+        for (boolean c : covered) if (c) count++;
+        double meanDeltaE = total / Math.max(1, count);
+        return Math.max(0, 1 - meanDeltaE / MAX_DELTA_E);
+    }
+
+    // Converts a packed sRGB pixel to CIE Lab (D65 white) and stores it in lab
+    private static void toLab(int rgb, double[] lab) {
+        double r = LINEAR[(rgb >> 16) & 0xff];
+        double g = LINEAR[(rgb >> 8) & 0xff];
+        double b = LINEAR[rgb & 0xff];
+        double x = (0.4124 * r + 0.3576 * g + 0.1805 * b) / 0.95047;
+        double y = (0.2126 * r + 0.7152 * g + 0.0722 * b);
+        double z = (0.0193 * r + 0.1192 * g + 0.9505 * b) / 1.08883;
+        double fx = labF(x);
+        double fy = labF(y);
+        double fz = labF(z);
+        lab[0] = 116 * fy - 16;
+        lab[1] = 500 * (fx - fy);
+        lab[2] = 200 * (fy - fz);
+    }
+    private static double labF(double t) {
+        return (t > 0.008856) ? Math.cbrt(t) : (7.787 * t + 16.0 / 116.0);
+    }
+}
@@ -0,0 +1,109 @@
+package core;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ProgressiveRender draws scenes too big to composite in one frame, such
+ * as imported data with hundreds of thousands of rectangles, without
+ * freezing the editor.
+ *
+ * It starts with Renderer.renderPreview(), which draws each RectBatchLayer
+ * from its small overview image, so something is on screen within a frame
+ * however large the scene is. Then the image is rendered again at full
+ * quality in tiles on background threads, center first, and each finished
+ * tile is copied into the image on the EDT, which is then repainted. Any
+ * edit cancels the refinement and starts over from a new preview.
+ *
+ * Main uses this instead of a plain render when isHeavy() says so.
+ */
+class ProgressiveRender {
+    /** Rectangles in a scene (counting each RectBatchLayer rectangle) from which it is drawn progressively. */
+    static final int HEAVY_RECTS = 100_000;
+    private static final int TILE = 128;
+    // Shared by all refinements; cancelled ones stop at their next tile
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r -> {
+                Thread t = new Thread(r, "progressive-render");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+
+    private final BufferedImage image;
+    private volatile boolean cancelled = false;
+    private int tilesLeft;
+
+    /**
+     * @return true if the layers hold so many rectangles that a full render
+     * would hold up the editor
+     */
+    static boolean isHeavy(List<Layer> layers) {
+        long rects = 0;
+        for (Layer l : layers) rects += (l instanceof RectBatchLayer batch) ? batch.size() : 1;
+        return rects >= HEAVY_RECTS;
+    }
+
+    /**
+     * Renders the preview right away and starts refining it. Call on the EDT.
+     *
+     * @param layers  the layers to draw; copied, so they may change afterwards
+     * @param width   width of the image in pixels
+     * @param height  height of the image in pixels
+     * @param onTile  run on the EDT each time part of the image got sharper
+     */
+    ProgressiveRender(List<Layer> layers, int width, int height, Runnable onTile) {
+        List<Layer> snapshot = new ArrayList<>(layers.size());
+        for (Layer l : layers) snapshot.add(l.copy()); // rectangle data is shared, not copied
+        image = Renderer.renderPreview(snapshot, width, height);
+
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < height; y += TILE) {
+            for (int x = 0; x < width; x += TILE) {
+                tiles.add(new Rectangle(x, y, Math.min(TILE, width - x), Math.min(TILE, height - y)));
+            }
+        }
+        // The middle is usually what the user looks at
+        Point center = new Point(width / 2, height / 2);
+        tiles.sort(Comparator.comparingDouble(t -> center.distanceSq(t.getCenterX(), t.getCenterY())));
+        tilesLeft = tiles.size();
+        for (Rectangle tile : tiles) {
+            workers.execute(() -> {
+                if (cancelled) return;
+                BufferedImage sharp = Renderer.renderTile(snapshot, width, height, tile);
+                SwingUtilities.invokeLater(() -> {
+                    if (cancelled) return;
+                    Graphics2D g = image.createGraphics();
+                    g.setComposite(AlphaComposite.Src);
+                    g.drawImage(sharp, tile.x, tile.y, null);
+                    g.dispose();
+                    tilesLeft--;
+                    onTile.run();
+                });
+            });
+        }
+    }
+
+    /**
+     * @return the image, which gets sharper as tiles finish. Only read it on the EDT
+     */
+    BufferedImage getImage() { return image; }
+
+    /**
+     * @return true once every tile is at full quality
+     */
+    boolean isDone() { return tilesLeft == 0; }
+
+    /**
+     * Stops refining. Tiles already being rendered are thrown away.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,68 @@
+package core;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * A RasterLayer holds pixels instead of a flat color. It is created by
+ * merging layers together ("merge down", "merge all", "flatten
+ * selection" in LayerManager), so finished parts of a drawing can be
+ * composited as one layer instead of many.
+ *
+ * Only the area covered by the merged layers is stored, not the whole
+ * canvas. The pixels are never changed after the layer is created, so
+ * copies of the layer (for example the snapshots kept for undo) share the
+ * same image instead of duplicating it.
+ *
+ * Moving or resizing the layer changes its rectangle; the pixels are
+ * stretched to fit it when rendering.
+ */
+public class RasterLayer extends Layer {
+    private final BufferedImage image;
+
+    /**
+     * Creates a raster layer.
+     *
+     * @param image     the pixels, usually TYPE_INT_ARGB_PRE. Must not be changed afterwards
+     * @param opacity   the transparency level (0.0 = transparent, 1.0 = opaque)
+     * @param blendMode how this layer blends with lower layers
+     * @param shape     where the pixels are drawn on the canvas
+     */
+    public RasterLayer(BufferedImage image, float opacity, BlendMode blendMode, Rectangle shape) {
+        super(Color.WHITE, opacity, blendMode, shape);
+        this.image = image;
+    }
+
+    /**
+     * @return the layer's pixels. Shared between copies, do not modify
+     */
+    public BufferedImage getImage() { return image; }
+
+    /**
+     * Raster layers keep their own pixel colors, so recoloring does nothing.
+     */
+    @Override
+    public void setColor(Color color) {}
+
+    /**
+     * Copies the layer. The pixels are shared with the original, since
+     * they never change.
+     */
+    @Override
+    public Layer copy() {
+        Layer copy = new RasterLayer(image, getOpacity(), getBlendMode(), new Rectangle(getShape()));
+        copy.setKeyframes(getKeyframes());
+        return copy;
+    }
+
+    // The pixels never change, so the same image object means the same pixels
+    @Override
+    boolean sameContent(Layer other) {
+        return super.sameContent(other) && ((RasterLayer) other).image == image;
+    }
+
+    @Override
+    long contentHash() {
+        return mix(super.contentHash(), System.identityHashCode(image));
+    }
+}
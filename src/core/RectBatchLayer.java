@@ -0,0 +1,355 @@
+package core;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A RectBatchLayer is one layer made of many small colored rectangles, for
+ * imported data like treemaps and heatmaps where there can be a million of
+ * them. Storing each as its own Layer would take an object, a Rectangle
+ * and a Color per rectangle; here they live in five int arrays, about 20
+ * bytes each.
+ *
+ * Inside the layer the rectangles are painted in order with normal alpha
+ * blending; the finished layer is then blended with the layers below using
+ * its own opacity and blend mode, like a group. Rectangles smaller than a
+ * pixel are not lost: they are painted into the pixel under their center
+ * with their alpha scaled by how much of the pixel they cover.
+ *
+ * When the layer is built a small overview image is made as well, where
+ * each cell holds the average color of everything over it. Drawing the
+ * overview costs the same no matter how many rectangles there are, so
+ * ProgressiveRender shows it first and refines afterwards. Overlapping
+ * rectangles are averaged in the overview instead of stacked.
+ *
+ * The rectangles are never changed after the layer is built, so copies
+ * share them. Moving or resizing the layer stretches the whole set to the
+ * new rectangle, like a RasterLayer.
+ */
+public class RectBatchLayer extends Layer {
+    // Cells along the longer side of the overview image
+    private static final int OVERVIEW_CELLS = 256;
+
+    private final Data data;
+
+    // The rectangles in data coordinates, their bounds and the overview, shared between copies
+    private record Data(int count, int[] x, int[] y, int[] w, int[] h, int[] argb,
+                        Rectangle bounds, BufferedImage overview) {}
+
+    private RectBatchLayer(Data data, float opacity, BlendMode blendMode, Rectangle shape) {
+        super(Color.WHITE, opacity, blendMode, shape);
+        this.data = data;
+    }
+
+    /**
+     * Collects rectangles one at a time without creating an object for
+     * each, then builds the layer.
+     */
+    public static class Builder {
+        private int count = 0;
+        private int[] x = new int[1024], y = new int[1024], w = new int[1024], h = new int[1024], argb = new int[1024];
+
+        /**
+         * Adds a rectangle on top of the ones added before. Empty ones are skipped.
+         *
+         * @param argb the color with alpha in the top byte, not premultiplied
+         */
+        public void add(int x, int y, int width, int height, int argb) {
+            if (width <= 0 || height <= 0) return;
+            if (count == this.x.length) {
+                int size = count * 2;
+                this.x = Arrays.copyOf(this.x, size);
+                this.y = Arrays.copyOf(this.y, size);
+                this.w = Arrays.copyOf(this.w, size);
+                this.h = Arrays.copyOf(this.h, size);
+                this.argb = Arrays.copyOf(this.argb, size);
+            }
+            this.x[count] = x;
+            this.y[count] = y;
+            this.w[count] = width;
+            this.h[count] = height;
+            this.argb[count] = argb;
+            count++;
+        }
+
+        /**
+         * @return how many rectangles were added so far
+         */
+        public int size() { return count; }
+
+        /**
+         * Builds the layer, placed on the canvas at the same coordinates as
+         * the rectangles' own.
+         *
+         * @param opacity   the transparency of the whole layer
+         * @param blendMode how the whole layer blends with lower layers
+         * @return the layer, or null if no rectangles were added
+         */
+        public RectBatchLayer build(float opacity, BlendMode blendMode) {
+            if (count == 0) return null;
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            long maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                minX = Math.min(minX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxX = Math.max(maxX, (long) x[i] + w[i]);
+                maxY = Math.max(maxY, (long) y[i] + h[i]);
+            }
+            Rectangle bounds = new Rectangle(minX, minY, (int) (maxX - minX), (int) (maxY - minY));
+            int[] xs = Arrays.copyOf(x, count), ys = Arrays.copyOf(y, count);
+            int[] ws = Arrays.copyOf(w, count), hs = Arrays.copyOf(h, count), colors = Arrays.copyOf(argb, count);
+            BufferedImage overview = overview(count, xs, ys, ws, hs, colors, bounds);
+            Data data = new Data(count, xs, ys, ws, hs, colors, bounds, overview);
+            return new RectBatchLayer(data, opacity, blendMode, new Rectangle(bounds));
+        }
+    }
+
+    /**
+     * @return how many rectangles the layer holds
+     */
+    public int size() { return data.count(); }
+
+    /**
+     * @return the area the rectangles were given in, before any move or resize
+     */
+    public Rectangle getDataBounds() { return new Rectangle(data.bounds()); }
+
+    /**
+     * Calls back with every rectangle in data coordinates, in paint order.
+     */
+    public void forEach(RectConsumer consumer) {
+        for (int i = 0; i < data.count(); i++) {
+            consumer.accept(data.x()[i], data.y()[i], data.w()[i], data.h()[i], data.argb()[i]);
+        }
+    }
+
+    /** Receives one rectangle from forEach(). */
+    public interface RectConsumer {
+        void accept(int x, int y, int width, int height, int argb);
+    }
+
+    // Maps data coordinates to canvas coordinates, following moves and resizes of the layer
+    private AffineTransform dataToCanvas() {
+        Rectangle s = getShape();
+        Rectangle b = data.bounds();
+        AffineTransform t = AffineTransform.getTranslateInstance(s.x, s.y);
+        t.scale(s.width / (double) b.width, s.height / (double) b.height);
+        t.translate(-b.x, -b.y);
+        return t;
+    }
+
+    /**
+     * Paints every rectangle into an image.
+     *
+     * @param target   a TYPE_INT_ARGB_PRE image to paint into
+     * @param toTarget maps canvas coordinates to target pixels; scale and translation only
+     */
+    void paint(BufferedImage target, AffineTransform toTarget) {
+        // Whole-pixel offsets (tiles, crops) are added after rounding, so every tile of a
+        // render rounds rectangle edges exactly like the full image does
+        double offsetX = Math.rint(toTarget.getTranslateX()), offsetY = Math.rint(toTarget.getTranslateY());
+        int ox = (int) offsetX, oy = (int) offsetY;
+        AffineTransform t = new AffineTransform(toTarget.getScaleX(), toTarget.getShearY(), toTarget.getShearX(),
+                toTarget.getScaleY(), toTarget.getTranslateX() - offsetX, toTarget.getTranslateY() - offsetY);
+        t.concatenate(dataToCanvas());
+        double sx = t.getScaleX(), sy = t.getScaleY(), tx = t.getTranslateX(), ty = t.getTranslateY();
+        int width = target.getWidth();
+        int height = target.getHeight();
+        int[] dst = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+        int[] xs = data.x(), ys = data.y(), ws = data.w(), hs = data.h(), colors = data.argb();
+        for (int i = 0; i < data.count(); i++) {
+            double fx0 = xs[i] * sx + tx, fx1 = (xs[i] + ws[i]) * sx + tx;
+            double fy0 = ys[i] * sy + ty, fy1 = (ys[i] + hs[i]) * sy + ty;
+            if (fx1 <= -ox || fy1 <= -oy || fx0 >= width - ox || fy0 >= height - oy) continue;
+            // Pixels whose centers are inside, like Graphics2D.fill; a side thinner than that
+            // keeps the pixel under its center and covers it partly
+            int px0 = (int) Math.ceil(fx0 - 0.5), px1 = (int) Math.ceil(fx1 - 0.5);
+            int py0 = (int) Math.ceil(fy0 - 0.5), py1 = (int) Math.ceil(fy1 - 0.5);
+            double coverage = 1;
+            if (px1 <= px0) {
+                px0 = (int) Math.floor((fx0 + fx1) / 2);
+                px1 = px0 + 1;
+                coverage *= fx1 - fx0;
+            }
+            if (py1 <= py0) {
+                py0 = (int) Math.floor((fy0 + fy1) / 2);
+                py1 = py0 + 1;
+                coverage *= fy1 - fy0;
+            }
+            px0 = Math.max(px0 + ox, 0);
+            py0 = Math.max(py0 + oy, 0);
+            px1 = Math.min(px1 + ox, width);
+            py1 = Math.min(py1 + oy, height);
+            int c = colors[i];
+            int a = (int) Math.round((c >>> 24) * coverage);
+            if (a == 0 || px0 >= px1 || py0 >= py1) continue;
+            int src = premultiply(c, a);
+            for (int py = py0; py < py1; py++) {
+                int row = py * width;
+                if (a == 255) {
+                    Arrays.fill(dst, row + px0, row + px1, src);
+                } else {
+                    for (int p = row + px0; p < row + px1; p++) dst[p] = srcOver(src, a, dst[p]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Paints the overview image instead of the rectangles, for a quick preview.
+     *
+     * @param g a Graphics2D whose transform maps canvas coordinates to its pixels
+     */
+    void paintOverview(Graphics2D g) {
+        Rectangle s = getShape();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(data.overview(), s.x, s.y, s.width, s.height, null);
+    }
+
+    private static int premultiply(int argb, int a) {
+        int r = ((argb >> 16) & 0xff) * a / 255;
+        int g = ((argb >> 8) & 0xff) * a / 255;
+        int b = (argb & 0xff) * a / 255;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // Porter-Duff source over for premultiplied pixels
+    private static int srcOver(int src, int srcAlpha, int dst) {
+        int keep = 255 - srcAlpha;
+        int a = srcAlpha + ((dst >>> 24) * keep + 127) / 255;
+        int r = ((src >> 16) & 0xff) + (((dst >> 16) & 0xff) * keep + 127) / 255;
+        int g = ((src >> 8) & 0xff) + (((dst >> 8) & 0xff) * keep + 127) / 255;
+        int b = (src & 0xff) + ((dst & 0xff) * keep + 127) / 255;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Builds the overview: each cell gets the premultiplied color of the
+     * rectangles over it, weighted by how much of the cell they cover.
+     *
+     * Every rectangle is split into at most 3x3 blocks of cells (partly
+     * covered edge columns and rows, and the fully covered middle) that each
+     * get the same weight, and each block is added to a 2D difference array
+     * with four updates. One prefix sum at the end spreads them out. So
+     * building costs the same per rectangle however many cells it covers.
+     */
+    private static BufferedImage overview(int count, int[] xs, int[] ys, int[] ws, int[] hs, int[] colors, Rectangle b) {
+        double cell = Math.max(b.width, b.height) / (double) OVERVIEW_CELLS;
+        int cols = Math.max(1, (int) Math.ceil(b.width / cell));
+        int rows = Math.max(1, (int) Math.ceil(b.height / cell));
+        // Premultiplied color times covered area for a, r, g, b, as difference arrays
+        double[][] sums = new double[4][(cols + 1) * (rows + 1)];
+        double[] xw = new double[3], yw = new double[3];
+        int[] xFrom = new int[3], xTo = new int[3], yFrom = new int[3], yTo = new int[3];
+        for (int i = 0; i < count; i++) {
+            int nx = spans((xs[i] - b.x) / cell, (xs[i] + ws[i] - b.x) / cell, cols, xFrom, xTo, xw);
+            int ny = spans((ys[i] - b.y) / cell, (ys[i] + hs[i] - b.y) / cell, rows, yFrom, yTo, yw);
+            int c = colors[i];
+            double a = (c >>> 24) / 255.0;
+            double[] channel = {a, a * ((c >> 16) & 0xff), a * ((c >> 8) & 0xff), a * (c & 0xff)};
+            for (int sy = 0; sy < ny; sy++) {
+                for (int sx = 0; sx < nx; sx++) {
+                    double weight = xw[sx] * yw[sy];
+                    for (int k = 0; k < 4; k++) {
+                        double v = channel[k] * weight;
+                        double[] s = sums[k];
+                        s[yFrom[sy] * (cols + 1) + xFrom[sx]] += v;
+                        s[yFrom[sy] * (cols + 1) + xTo[sx]] -= v;
+                        s[yTo[sy] * (cols + 1) + xFrom[sx]] -= v;
+                        s[yTo[sy] * (cols + 1) + xTo[sx]] += v;
+                    }
+                }
+            }
+        }
+        BufferedImage image = new BufferedImage(cols, rows, BufferedImage.TYPE_INT_ARGB_PRE);
+        int[] out = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (double[] s : sums) {
+            for (int y = 0; y <= rows; y++) {
+                for (int x = 0; x <= cols; x++) {
+                    int p = y * (cols + 1) + x;
+                    if (x > 0) s[p] += s[p - 1];
+                    if (y > 0) s[p] += s[p - cols - 1];
+                    if (x > 0 && y > 0) s[p] -= s[p - cols - 2];
+                }
+            }
+        }
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                int p = y * (cols + 1) + x;
+                // Each cell holds values times covered fraction; more than full coverage is overlap
+                double alpha = sums[0][p];
+                double scale = (alpha > 1) ? 1 / alpha : 1;
+                int a = clamp(alpha * scale * 255);
+                int r = clamp(sums[1][p] * scale);
+                int g = clamp(sums[2][p] * scale);
+                int bl = clamp(sums[3][p] * scale);
+                out[y * cols + x] = (a << 24) | (Math.min(r, a) << 16) | (Math.min(g, a) << 8) | Math.min(bl, a);
+            }
+        }
+        return image;
+    }
+
+    // Splits [from, to) in cell units into partly covered edge cells and the fully covered middle.
+    // Fills cell ranges and the covered fraction of each, returns how many spans there are
+    private static int spans(double from, double to, int cells, int[] start, int[] end, double[] weight) {
+        from = Math.max(0, from);
+        to = Math.min(cells, to);
+        int first = (int) Math.floor(from);
+        int last = Math.min(cells - 1, (int) Math.ceil(to) - 1);
+        if (last < first) return 0;
+        if (first == last) {
+            start[0] = first;
+            end[0] = first + 1;
+            weight[0] = to - from;
+            return 1;
+        }
+        int n = 0;
+        start[n] = first;
+        end[n] = first + 1;
+        weight[n++] = first + 1 - from;
+        if (last > first + 1) {
+            start[n] = first + 1;
+            end[n] = last;
+            weight[n++] = 1;
+        }
+        start[n] = last;
+        end[n] = last + 1;
+        weight[n++] = to - last;
+        return n;
+    }
+
+    private static int clamp(double v) {
+        return (int) Math.max(0, Math.min(255, Math.round(v)));
+    }
+
+    /**
+     * Rectangle sets keep their own colors, so recoloring does nothing.
+     */
+    @Override
+    public void setColor(Color color) {}
+
+    /**
+     * Copies the layer. The rectangles are shared with the original, since
+     * they never change.
+     */
+    @Override
+    public Layer copy() {
+        Layer copy = new RectBatchLayer(data, getOpacity(), getBlendMode(), new Rectangle(getShape()));
+        copy.setKeyframes(getKeyframes());
+        return copy;
+    }
+
+    // The rectangles never change, so the same data means the same rectangles
+    @Override
+    boolean sameContent(Layer other) {
+        return super.sameContent(other) && ((RectBatchLayer) other).data == data;
+    }
+
+    @Override
+    long contentHash() {
+        return mix(super.contentHash(), System.identityHashCode(data));
+    }
+}
@@ -0,0 +1,321 @@
+package core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.imageio.ImageIO;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RenderService renders and scores drawings over HTTP, without any windows,
+ * so a web site or a grading script can use the same compositing as the app.
+ *
+ * Endpoints:
+ *  - POST /render?width=800&height=600
+ *      body: a saved drawing (FileHandler format), answer: the PNG
+ *  - POST /score?mode=optimal|index&visual=true
+ *      body: {"target": {"layers": [...]}, "player": {"layers": [...]}}
+ *      answer: {"score": 0.93} plus "visual" from PerceptualScorer if asked for
+ *  - GET /metrics
+ *      request counts, latency percentiles and CompositeCache counters as JSON
+ *
+ * Every request gets its own virtual thread, so thousands of slow clients
+ * only cost memory. The rendering and scoring itself runs on a small pool
+ * with one thread per core and a bounded queue. A render or score request
+ * must take one of threads + queue admission slots before its body is
+ * even read; when none is free it is turned away at once with 503 and a
+ * Retry-After header instead of piling up. That keeps both latency and
+ * memory steady under overload, since at most that many bodies are held
+ * at a time. Visual scores are computed on the worker thread alone, so
+ * they do not spill onto the common pool either.
+ *
+ * Run it with
+ *   java -Djava.awt.headless=true core.RenderService [port] [bindAddress] [threads] [queue]
+ * By default it listens on localhost only. There is no authentication, so
+ * only bind it to other addresses on a network you trust.
+ */
+public class RenderService implements Closeable {
+    public static final int DEFAULT_PORT = 8150;
+    /** Largest request body accepted, larger ones get 413. */
+    public static final int MAX_BODY_BYTES = 8 << 20;
+    /** Largest image /render will make, in pixels. */
+    public static final int MAX_PIXELS = 4096 * 4096;
+    // Connections waiting to be accepted by the HTTP server
+    private static final int BACKLOG = 4096;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ThreadPoolExecutor compositor;
+    // One permit per request that may read, parse and wait for the compositor at a time
+    private final Semaphore admission;
+    private final LatencyHistogram renderLatency = new LatencyHistogram();
+    private final LatencyHistogram scoreLatency = new LatencyHistogram();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong badRequests = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // A request that could not be served, with the status to answer
+    private static class HttpError extends Exception {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Starts a service on localhost with one compositing thread per core.
+     *
+     * @param port the TCP port, 0 for any free port
+     * @throws IOException if the port cannot be opened
+     */
+    public RenderService(int port) throws IOException {
+        this(port, InetAddress.getLoopbackAddress(), Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    /**
+     * Starts a service.
+     *
+     * @param port        the TCP port, 0 for any free port
+     * @param bindAddress the address to listen on
+     * @param threads     number of threads that render and score
+     * @param queueSize   requests that may wait for one of those threads before new ones get 503
+     * @throws IOException if the port cannot be opened
+     */
+    public RenderService(int port, InetAddress bindAddress, int threads, int queueSize) throws IOException {
+        compositor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "render-worker");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        admission = new Semaphore(threads + queueSize);
+        handlers = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), BACKLOG);
+        server.setExecutor(handlers);
+        server.createContext("/render", this::handleRender);
+        server.createContext("/score", this::handleScore);
+        server.createContext("/metrics", this::handleMetrics);
+        server.start();
+    }
+
+    /**
+     * @return the port the service listens on
+     */
+    public int getPort() { return server.getAddress().getPort(); }
+
+    private void handleRender(HttpExchange exchange) throws IOException {
+        serve(exchange, "POST", renderLatency, () -> admitted(() -> {
+            Map<String, String> query = query(exchange);
+            int width = intParam(query, "width", Renderer.WIDTH);
+            int height = intParam(query, "height", Renderer.HEIGHT);
+            if (width < 1 || height < 1 || (long) width * height > MAX_PIXELS) {
+                throw new HttpError(400, "Size must be between 1x1 and " + MAX_PIXELS + " pixels");
+            }
+            List<Layer> layers = parse(readBody(exchange), null);
+            byte[] png = compute(() -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ImageIO.write(CompositeCache.render(layers, width, height), "png", bytes);
+                return bytes.toByteArray();
+            });
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            return png;
+        }));
+    }
+
+    private void handleScore(HttpExchange exchange) throws IOException {
+        serve(exchange, "POST", scoreLatency, () -> admitted(() -> {
+            Map<String, String> query = query(exchange);
+            ChallengeScorer.MatchMode mode = switch (query.getOrDefault("mode", "optimal")) {
+                case "optimal" -> ChallengeScorer.MatchMode.OPTIMAL;
+                case "index" -> ChallengeScorer.MatchMode.BY_INDEX;
+                default -> throw new HttpError(400, "mode must be optimal or index");
+            };
+            boolean visual = Boolean.parseBoolean(query.get("visual"));
+            String body = readBody(exchange);
+            List<Layer> target = parse(body, "target");
+            List<Layer> player = parse(body, "player");
+            JSONObject result = compute(() -> {
+                JSONObject json = new JSONObject();
+                json.put("score", ChallengeScorer.compare(target, player, mode));
+                if (visual) json.put("visual", PerceptualScorer.compare(target, player, false));
+                return json;
+            });
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            return result.toString().getBytes(StandardCharsets.UTF_8);
+        }));
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        serve(exchange, "GET", null, () -> {
+            JSONObject json = new JSONObject();
+            json.put("render", metrics(renderLatency));
+            json.put("score", metrics(scoreLatency));
+            json.put("rejected", rejected.get());
+            json.put("badRequests", badRequests.get());
+            json.put("failed", failed.get());
+            json.put("queued", compositor.getQueue().size());
+            json.put("busyThreads", compositor.getActiveCount());
+            JSONObject cache = new JSONObject();
+            cache.put("hits", CompositeCache.getHits());
+            cache.put("misses", CompositeCache.getMisses());
+            cache.put("evictions", CompositeCache.getEvictions());
+            cache.put("bytes", CompositeCache.getBytes());
+            json.put("compositeCache", cache);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            return json.toString().getBytes(StandardCharsets.UTF_8);
+        });
+    }
+
+    private static JSONObject metrics(LatencyHistogram latency) {
+        JSONObject json = new JSONObject();
+        json.put("count", latency.count());
+        json.put("p50Ms", latency.percentile(0.50));
+        json.put("p95Ms", latency.percentile(0.95));
+        json.put("p99Ms", latency.percentile(0.99));
+        return json;
+    }
+
+    // Something that answers a request with a body, or fails with an HttpError
+    private interface Handler {
+        byte[] handle() throws Exception;
+    }
+
+    // Runs one request on its virtual thread and turns every outcome into a response
+    private void serve(HttpExchange exchange, String method, LatencyHistogram latency, Handler handler) throws IOException {
+        long t0 = System.nanoTime();
+        try (exchange) {
+            int status = 200;
+            byte[] body;
+            try {
+                if (!exchange.getRequestMethod().equals(method)) throw new HttpError(405, "Use " + method);
+                body = handler.handle();
+            } catch (HttpError e) {
+                status = e.status;
+                body = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                if (status == 503) {
+                    rejected.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                } else {
+                    badRequests.incrementAndGet();
+                }
+            } catch (Exception e) {
+                status = 500;
+                body = "Internal error\n".getBytes(StandardCharsets.UTF_8);
+                failed.incrementAndGet();
+                e.printStackTrace();
+            }
+            if (status != 200) exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            if (status == 200 && latency != null) latency.record(System.nanoTime() - t0);
+        }
+    }
+
+    // Holds an admission slot while the handler reads, parses and computes, or turns the request away
+    private byte[] admitted(Handler handler) throws Exception {
+        if (!admission.tryAcquire()) throw new HttpError(503, "Busy, try again later");
+        try {
+            return handler.handle();
+        } finally {
+            admission.release();
+        }
+    }
+
+    // Runs the expensive part on the compositing pool; the calling virtual thread just waits
+    private <T> T compute(Callable<T> task) throws Exception {
+        Future<T> future;
+        try {
+            future = compositor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new HttpError(503, "Busy, try again later");
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException, HttpError {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) throw new HttpError(413, "Body larger than " + MAX_BODY_BYTES + " bytes");
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Parses a drawing from the body, or from the named member of it
+    private static List<Layer> parse(String body, String member) throws HttpError {
+        try {
+            JSONObject root = new JSONObject(body);
+            return FileHandler.parseLayers((member == null) ? root : root.getJSONObject(member));
+        } catch (JSONException | IllegalArgumentException | IOException e) {
+            throw new HttpError(400, "Not a valid drawing: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> query, String name, int fallback) throws HttpError {
+        String value = query.get(name);
+        if (value == null) return fallback;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, name + " must be a whole number");
+        }
+    }
+
+    /**
+     * Stops the service. Requests still being rendered are abandoned.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+        compositor.shutdownNow();
+    }
+
+    /**
+     * Runs the service from the command line until it is killed.
+     *
+     * @param args [port] [address to listen on] [compositing threads] [queue size]
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int cores = Runtime.getRuntime().availableProcessors();
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        InetAddress address = (args.length > 1) ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : cores;
+        int queue = (args.length > 3) ? Integer.parseInt(args[3]) : threads * 16;
+        RenderService service = new RenderService(port, address, threads, queue);
+        System.out.println("Render service on " + address.getHostAddress() + ":" + service.getPort());
+        Thread.currentThread().join();
+    }
+}
@@ -2,21 +2,46 @@
 package core;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.BitSet;
 import java.util.List;
 /**
  * The Renderer is responsible for converting a list of objects
  * into a final composited image. Each layer is drawn onto an off-screen
  * BufferedImage, blended with previously processed layers, and finally drawn
  * to the screen.
+ * All images use premultiplied alpha (TYPE_INT_ARGB_PRE), and every blend
+ * mode composites with proper Porter-Duff alpha. The per-mode math lives
+ * in BlendKernels.
  * The rendering process works like this:
  * 1. Create a white background image.
  * 2. For each layer:
  * Draw the layer's rectangle onto a temporary image.
- * Blend that temporary image into the main result image.
+ * Blend that temporary image into the main result image, applying the
+ * layer's opacity in the same pass.
  * 3. Draw the finished result image onto the screen.
+ *
+ * Layers are only drawn and blended inside their own bounds, split into
+ * 32x32 tiles. Tiles that are completely covered by an opaque NORMAL layer
+ * higher up are skipped for every layer underneath, since that layer
+ * overwrites them anyway. The output is the same as drawing everything.
+ *
+ * A LayerGroup is treated like one layer whose pixels come from the group's
+ * cached composite of its children. A RasterLayer draws its baked pixels
+ * stretched to its rectangle, and a RectBatchLayer fills its rectangles
+ * straight into the layer's pixels.
  *  */
 public class Renderer {
+    /** Size of the drawing canvas in pixels. */
+    public static final int WIDTH = 800;
+    public static final int HEIGHT = 600;
+
+    // Size of the square tiles used to skip hidden areas
+    private static final int TILE = 32;
+
     private Graphics2D g2d;
     /**
      * Creates a Renderer that draws into the given Graphics2D object.
@@ -26,62 +51,26 @@ public class Renderer {
     public Renderer(Graphics2D g2d) {
         this.g2d = g2d;
     }
-    private BufferedImage blend(BufferedImage base, BufferedImage top, BlendMode mode) {
-        int width = base.getWidth();
-        int height = base.getHeight();
-        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int baseRGB = base.getRGB(x, y);
-                int topRGB = top.getRGB(x, y);
-                int topAlpha = (topRGB >> 24) & 0xff;
-                if (topAlpha == 0) {
-                    result.setRGB(x, y, baseRGB); // skip blending, keep base pixel
-                    continue;
-                }
-                Color baseC = new Color(baseRGB, true);
-                Color topC = new Color(topRGB, true);
-                float r1 = baseC.getRed() / 255f;
-                float g1 = baseC.getGreen() / 255f;
-                float b1 = baseC.getBlue() / 255f;
-                float r2 = topC.getRed() / 255f;
-                float g2 = topC.getGreen() / 255f;
-                float b2 = topC.getBlue() / 255f;
-                float r, g, b;
-                // Apply blending logic, each of the add mul subtract
-                switch (mode) {
-                    case ADD:
-                        r = Math.min(1.0f, r1 + r2);
-                        g = Math.min(1.0f, g1 + g2);
-                        b = Math.min(1.0f, b1 + b2);
-                        break;
-                    case MULTIPLY:
-                        r = r1 * r2;
-                        g = g1 * g2;
-                        b = b1 * b2;
-                        break;
-                    case SUBTRACT:
-                        r = Math.max(0.0f, r1 - r2);
-                        g = Math.max(0.0f, g1 - g2);
-                        b = Math.max(0.0f, b1 - b2);
-                        break;
-                    default:
-                        // Without specification = just take the top pixel, as with painter's algorithm
-                        r = r2;
-                        g = g2;
-                        b = b2;
-                }
-                // Combine alpha for simplification
-                float a = Math.max(baseC.getAlpha(), topC.getAlpha()) / 255f;
-                int outR = (int) (r * 255);
-                int outG = (int) (g * 255);
-                int outB = (int) (b * 255);
-                int outA = (int) (a * 255);
-                Color resultColor = new Color(outR, outG, outB, outA);
-                result.setRGB(x, y, resultColor.getRGB());
-            }
+    /**
+     * Blends the top image into base, in place, over the given region only.
+     * Pixels of top are offset by (ox, oy) on base, so a layer image only
+     * needs to be as large as the layer itself.
+     *
+     * Both images are premultiplied (TYPE_INT_ARGB_PRE). The actual math is
+     * done by the mode's BlendKernel one row at a time; the layer opacity
+     * is folded into the same pass.
+     */
+    private static void blend(BufferedImage base, BufferedImage top, int ox, int oy, Rectangle region,
+                              BlendMode mode, float opacity) {
+        int[] dst = ((DataBufferInt) base.getRaster().getDataBuffer()).getData();
+        int[] src = ((DataBufferInt) top.getRaster().getDataBuffer()).getData();
+        int dstStride = base.getWidth();
+        int srcStride = top.getWidth();
+        int op = Math.round(Math.max(0f, Math.min(1f, opacity)) * 255);
+        BlendKernel kernel = BlendKernels.get(mode);
+        for (int y = region.y; y < region.y + region.height; y++) {
+            kernel.blend(dst, y * dstStride + region.x, src, (y - oy) * srcStride + (region.x - ox), region.width, op);
         }
-        return result;
     }
     /**
      * Draws all layers by rendering each one, blending them, and finally
@@ -89,26 +78,262 @@ public class Renderer {
      * @param layers the list of layers that will be rendered in order
      * */
     public void draw(List<Layer> layers) {
-        int width = 800;
-        int height = 600;
+        BufferedImage result = render(layers, WIDTH, HEIGHT);
+        // Draw final result to the panel
+        g2d.drawImage(result, 0, 0, null);
+    }
+    /**
+     * Composites the layers into a new image without drawing it anywhere.
+     * The layers are laid out on the 800x600 canvas and scaled to fit the
+     * requested size, so a smaller size gives a cheap downsampled render.
+     * @param layers the list of layers that will be rendered in order
+     * @param width  width of the output image in pixels
+     * @param height height of the output image in pixels
+     * @return the composited image
+     */
+    public static BufferedImage render(List<Layer> layers, int width, int height) {
         // Blank Base Image. It's all white, so there could be consequences there. First layer can only use normal/multiply
-        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D gResult = result.createGraphics();
+        gResult.setColor(Color.WHITE);
+        gResult.fillRect(0, 0, width, height);
+        gResult.dispose();
+        return composite(result, layers, width, height);
+    }
+    /**
+     * Composites layers on top of an image that already holds the layers
+     * below them, at the size of that image. The result is the same as
+     * rendering everything, but the bottom part is not blended again. Used
+     * by Timeline so only the animated part of the stack is redone per frame.
+     * @param background a finished render of the layers underneath. Not modified
+     * @param layers     the layers above it, rendered in order
+     * @return a new image with the layers composited over the background
+     */
+    static BufferedImage renderOver(BufferedImage background, List<Layer> layers) {
+        int width = background.getWidth();
+        int height = background.getHeight();
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        System.arraycopy(((DataBufferInt) background.getRaster().getDataBuffer()).getData(), 0,
+                ((DataBufferInt) result.getRaster().getDataBuffer()).getData(), 0, width * height);
+        return composite(result, layers, width, height);
+    }
+    /**
+     * Composites one horizontal strip of a render of the given size, as if
+     * render(layers, width, height) had been called and rows y to y + rows
+     * cut out of it. Used by StripExporter so a poster-size export never
+     * needs the whole image in memory.
+     * @param layers the list of layers that will be rendered in order
+     * @param width  width of the whole output image in pixels
+     * @param height height of the whole output image in pixels
+     * @param y      first row of the strip
+     * @param rows   number of rows in the strip
+     * @return an image width x rows
+     */
+    static BufferedImage renderStrip(List<Layer> layers, int width, int height, int y, int rows) {
+        return renderTile(layers, width, height, new Rectangle(0, y, width, rows));
+    }
+    /**
+     * Composites one rectangular piece of a render of the given size, as if
+     * render(layers, width, height) had been called and the tile cut out of
+     * it. Used by StripExporter and ProgressiveRender.
+     * @param layers the list of layers that will be rendered in order
+     * @param width  width of the whole output image in pixels
+     * @param height height of the whole output image in pixels
+     * @param tile   the piece to render, in pixels of the whole output image
+     * @return an image the size of tile
+     */
+    static BufferedImage renderTile(List<Layer> layers, int width, int height, Rectangle tile) {
+        BufferedImage result = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D gResult = result.createGraphics();
+        gResult.setColor(Color.WHITE);
+        gResult.fillRect(0, 0, tile.width, tile.height);
+        gResult.dispose();
+        AffineTransform view = AffineTransform.getTranslateInstance(-tile.x, -tile.y);
+        view.scale(width / (double) WIDTH, height / (double) HEIGHT);
+        return composite(result, layers, view, false);
+    }
+    /**
+     * Like render(), but a RectBatchLayer is drawn from its small overview
+     * image instead of rectangle by rectangle, so the time does not depend
+     * on how many rectangles there are. Used by ProgressiveRender for the
+     * first frame.
+     * @param layers the list of layers that will be rendered in order
+     * @param width  width of the output image in pixels
+     * @param height height of the output image in pixels
+     * @return the approximate composite
+     */
+    static BufferedImage renderPreview(List<Layer> layers, int width, int height) {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
         Graphics2D gResult = result.createGraphics();
         gResult.setColor(Color.WHITE);
         gResult.fillRect(0, 0, width, height);
-        // Draw and blend each layer
-        for (Layer layer : layers) {
-            BufferedImage layerImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        gResult.dispose();
+        return composite(result, layers,
+                AffineTransform.getScaleInstance(width / (double) WIDTH, height / (double) HEIGHT), true);
+    }
+    /**
+     * Composites the children of a LayerGroup onto a transparent image.
+     * Used by LayerGroup to build its cached image.
+     * @param layers the group's children, rendered in order
+     * @param width  width of the output image in pixels
+     * @param height height of the output image in pixels
+     * @return the composited image
+     */
+    static BufferedImage renderGroup(List<Layer> layers, int width, int height) {
+        AffineTransform view = AffineTransform.getScaleInstance(width / (double) WIDTH, height / (double) HEIGHT);
+        return composite(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE), layers, view);
+    }
+    /**
+     * Composites layers onto a transparent image covering only the given
+     * part of the canvas, at full resolution. Used to bake layers into a
+     * RasterLayer without allocating the whole canvas.
+     * @param layers the layers to render, in order
+     * @param region the part of the canvas to render, in canvas coordinates
+     * @return an image the size of region
+     */
+    static BufferedImage renderRegion(List<Layer> layers, Rectangle region) {
+        AffineTransform view = AffineTransform.getTranslateInstance(-region.x, -region.y);
+        BufferedImage result = new BufferedImage(Math.max(1, region.width), Math.max(1, region.height),
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        return composite(result, layers, view);
+    }
+    private static BufferedImage composite(BufferedImage result, List<Layer> layers, int width, int height) {
+        return composite(result, layers, AffineTransform.getScaleInstance(width / (double) WIDTH, height / (double) HEIGHT));
+    }
+    private static BufferedImage composite(BufferedImage result, List<Layer> layers, AffineTransform view) {
+        return composite(result, layers, view, false);
+    }
+    // view maps canvas coordinates to pixels of result. coarse draws rectangle batches from their overview
+    private static BufferedImage composite(BufferedImage result, List<Layer> layers, AffineTransform view,
+                                           boolean coarse) {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        // True when result is the whole canvas, so a group's cached image at this size fits it exactly
+        boolean scaleOnly = view.getTranslateX() == 0 && view.getTranslateY() == 0
+                && Math.round(view.getScaleX() * WIDTH) == width && Math.round(view.getScaleY() * HEIGHT) == height;
+        int n = layers.size();
+        Rectangle canvas = new Rectangle(0, 0, width, height);
+        int tilesX = (width + TILE - 1) / TILE;
+        int tilesY = (height + TILE - 1) / TILE;
+
+        // Pass 1, front to back: find the tiles of each layer that are not hidden under
+        // an opaque NORMAL layer above it. Such a layer replaces the pixel completely,
+        // so whatever is underneath can be skipped without changing the output.
+        BitSet covered = new BitSet(tilesX * tilesY);
+        BitSet[] needed = new BitSet[n];
+        Rectangle[] area = new Rectangle[n];
+        for (int i = n - 1; i >= 0; i--) {
+            Layer layer = layers.get(i);
+            Rectangle b = pixelBounds(layer, view).intersection(canvas);
+            if (b.isEmpty()) continue;
+            BitSet tiles = new BitSet();
+            for (int ty = b.y / TILE; ty <= (b.y + b.height - 1) / TILE; ty++) {
+                for (int tx = b.x / TILE; tx <= (b.x + b.width - 1) / TILE; tx++) {
+                    if (!covered.get(ty * tilesX + tx)) tiles.set(ty * tilesX + tx);
+                }
+            }
+            if (tiles.isEmpty()) continue; // completely hidden, never drawn
+            needed[i] = tiles;
+            area[i] = b.intersection(tileBounds(tiles, tilesX));
+            if (isOpaqueNormal(layer)) markCovered(covered, layer, view, b, tilesX, width, height);
+        }
+
+        // Pass 2, back to front: draw each layer into an image covering just its visible tiles,
+        // so the parts hidden under opaque layers are neither allocated nor rasterized, and blend them
+        for (int i = 0; i < n; i++) {
+            if (needed[i] == null) continue;
+            Layer layer = layers.get(i);
+            Rectangle b = area[i];
+            BufferedImage layerImg = new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_ARGB_PRE);
             Graphics2D gLayer = layerImg.createGraphics();
-            gLayer.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, layer.getOpacity()));
-            gLayer.setColor(layer.getColor());
-            gLayer.fill(layer.getShape());
+            gLayer.translate(-b.x, -b.y);
+            if (layer instanceof LayerGroup group && scaleOnly) {
+                // Groups bring their own cached image, their opacity is applied while blending
+                gLayer.drawImage(group.composite(width, height), 0, 0, null);
+            } else if (layer instanceof LayerGroup group && (view.getScaleX() > 1 || view.getScaleY() > 1)) {
+                // Cropped and enlarged: the cached image would look blocky, so composite the
+                // children again for just this area
+                AffineTransform local = AffineTransform.getTranslateInstance(-b.x, -b.y);
+                local.concatenate(view);
+                BufferedImage children = new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_ARGB_PRE);
+                gLayer.drawImage(composite(children, group.getChildren(), local, coarse), b.x, b.y, null);
+            } else if (layer instanceof LayerGroup group) {
+                // Cropped render: place the cached full-canvas image under the same view
+                gLayer.transform(view);
+                gLayer.drawImage(group.composite(WIDTH, HEIGHT), 0, 0, null);
+            } else if (layer instanceof RectBatchLayer batch && coarse) {
+                gLayer.transform(view);
+                batch.paintOverview(gLayer);
+            } else if (layer instanceof RectBatchLayer batch) {
+                // Filled straight into the pixels, far faster than a fill() per rectangle
+                AffineTransform local = AffineTransform.getTranslateInstance(-b.x, -b.y);
+                local.concatenate(view);
+                batch.paint(layerImg, local);
+            } else if (layer instanceof RasterLayer raster) {
+                // Baked pixels are stretched to the layer's current rectangle
+                Rectangle r = raster.getShape();
+                gLayer.transform(view);
+                gLayer.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                gLayer.drawImage(raster.getImage(), r.x, r.y, r.width, r.height, null);
+            } else {
+                if (!view.isIdentity()) gLayer.transform(view);
+                gLayer.setColor(layer.getColor());
+                gLayer.fill(layer.getShape());
+            }
             gLayer.dispose();
-            // Blend into the result
-            result = blend(result, layerImg, layer.getBlendMode());
+            // Blend into the result, one visible tile at a time
+            BitSet tiles = needed[i];
+            for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1)) {
+                Rectangle tile = new Rectangle((t % tilesX) * TILE, (t / tilesX) * TILE, TILE, TILE);
+                blend(result, layerImg, b.x, b.y, tile.intersection(b), layer.getBlendMode(), layer.getOpacity());
+            }
+        }
+        return result;
+    }
+    // The smallest rectangle holding all the given tiles
+    private static Rectangle tileBounds(BitSet tiles, int tilesX) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1)) {
+            int tx = t % tilesX;
+            int ty = t / tilesX;
+            minX = Math.min(minX, tx);
+            maxX = Math.max(maxX, tx);
+            minY = Math.min(minY, ty);
+            maxY = Math.max(maxY, ty);
+        }
+        return new Rectangle(minX * TILE, minY * TILE, (maxX - minX + 1) * TILE, (maxY - minY + 1) * TILE);
+    }
+    // Pixels a layer can touch under the given view, one pixel larger for rounding and smoothing
+    private static Rectangle pixelBounds(Layer layer, AffineTransform view) {
+        Rectangle b = view.createTransformedShape(layer.getShape()).getBounds();
+        b.grow(1, 1);
+        return b;
+    }
+    // A plain layer that fully replaces every pixel it covers
+    private static boolean isOpaqueNormal(Layer layer) {
+        return layer.getClass() == Layer.class
+                && layer.getBlendMode() == BlendMode.NORMAL
+                && layer.getOpacity() >= 1.0f
+                && layer.getColor().getAlpha() == 255;
+    }
+    // Marks the tiles that lie completely inside the layer's filled pixels
+    private static void markCovered(BitSet covered, Layer layer, AffineTransform view, Rectangle b,
+                                    int tilesX, int width, int height) {
+        Rectangle2D r = view.createTransformedShape(layer.getShape()).getBounds2D();
+        // Only pixels whose centers are inside get filled, so stay on whole pixels inside the shape
+        int x0 = (int) Math.ceil(r.getMinX());
+        int y0 = (int) Math.ceil(r.getMinY());
+        int x1 = (int) Math.floor(r.getMaxX());
+        int y1 = (int) Math.floor(r.getMaxY());
+        for (int ty = b.y / TILE; ty <= (b.y + b.height - 1) / TILE; ty++) {
+            int top = ty * TILE;
+            int bottom = Math.min(top + TILE, height);
+            if (top < y0 || bottom > y1) continue;
+            for (int tx = b.x / TILE; tx <= (b.x + b.width - 1) / TILE; tx++) {
+                int left = tx * TILE;
+                int right = Math.min(left + TILE, width);
+                if (left >= x0 && right <= x1) covered.set(ty * tilesX + tx);
+            }
         }
-        // Draw final result to the panel
-        gResult.dispose();
-        g2d.drawImage(result, 0, 0, null);
     }
 }
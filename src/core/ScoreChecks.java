@@ -0,0 +1,69 @@
+package core;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ScoreChecks runs a few small drawings through the scorers and checks that
+ * the scores say what a person looking at them would say. It catches a
+ * scorer that still runs but has stopped telling drawings apart, which the
+ * pixel-exact GoldenImages check cannot see.
+ *
+ * Each check prints ok or FAIL with the score it got.
+ *
+ * Usage:
+ *   java -Djava.awt.headless=true core.ScoreChecks
+ * Exits with status 1 if any check fails.
+ */
+public class ScoreChecks {
+    private int failures;
+
+    private ScoreChecks() {}
+
+    /**
+     * Runs every check.
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) {
+        ScoreChecks checks = new ScoreChecks();
+        checks.visualChecks();
+        if (checks.failures > 0) {
+            System.out.println(checks.failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks pass");
+    }
+
+    private void visualChecks() {
+        List<Layer> target = List.of(rect(Color.RED, BlendMode.NORMAL, 100, 100, 60, 60));
+        check("visual: same drawing", PerceptualScorer.compare(target, copies(target)), 0.99, 1.0);
+        check("visual: empty drawing", PerceptualScorer.compare(target, List.of()), 0.0, 0.2);
+        check("visual: square in the wrong place",
+                PerceptualScorer.compare(target, List.of(rect(Color.BLUE, BlendMode.NORMAL, 700, 500, 60, 60))), 0.0, 0.2);
+        check("visual: slightly off color",
+                PerceptualScorer.compare(target, List.of(rect(new Color(240, 10, 10), BlendMode.NORMAL, 100, 100, 60, 60))), 0.7, 1.0);
+        // MULTIPLY of gray over white looks exactly like the gray itself
+        check("visual: same look, other blend mode",
+                PerceptualScorer.compare(List.of(rect(Color.GRAY, BlendMode.MULTIPLY, 200, 200, 80, 80)),
+                        List.of(rect(Color.GRAY, BlendMode.NORMAL, 200, 200, 80, 80))), 0.99, 1.0);
+        check("visual: two blank canvases", PerceptualScorer.compare(List.of(), List.of()), 1.0, 1.0);
+    }
+
+    private void check(String name, double score, double low, double high) {
+        boolean ok = score >= low && score <= high;
+        if (!ok) failures++;
+        System.out.printf("%-4s %-40s %.3f (expected %.2f to %.2f)%n", ok ? "ok" : "FAIL", name, score, low, high);
+    }
+
+    private static Layer rect(Color color, BlendMode mode, int x, int y, int w, int h) {
+        return new Layer(color, 1f, mode, new Rectangle(x, y, w, h));
+    }
+
+    private static List<Layer> copies(List<Layer> layers) {
+        List<Layer> copies = new ArrayList<>(layers.size());
+        for (Layer l : layers) copies.add(l.copy());
+        return copies;
+    }
+}
@@ -0,0 +1,118 @@
+package core;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ScorerBenchmark measures how ChallengeScorer's OPTIMAL matching scales
+ * with the number of layers, so a change to the assignment solver can be
+ * checked against numbers instead of guesses.
+ *
+ * For each layer count n it builds a random target drawing and two player
+ * drawings:
+ *  - shuffled: the target's layers in a random order, each nudged a little,
+ *    the usual case where a good pairing exists
+ *  - unrelated: a second random drawing, where many pairings score about
+ *    the same and the solver has to work hardest
+ * It times building the n x n cost matrix and solving the assignment
+ * separately, taking the median of several runs after warming up, and
+ * prints how fast each grows: the exponent k in time ~ n^k between one n
+ * and the next. The Hungarian solver is O(n^3) at worst, so k should stay
+ * at or below about 3 for the solve and about 2 for the matrix.
+ *
+ * Usage:
+ *   java core.ScorerBenchmark [largest n, default 1600]
+ * The sweep doubles n from 50 up to the largest n.
+ */
+public class ScorerBenchmark {
+    // Solves per size before measuring, so the JIT has compiled the loops
+    private static final int WARMUP = 3;
+    // Measured solves per size; the median counts
+    private static final int RUNS = 5;
+
+    private ScorerBenchmark() {}
+
+    /**
+     * Runs the sweep and prints one line per size and case.
+     *
+     * @param args [largest n]
+     */
+    public static void main(String[] args) {
+        int largest = (args.length > 0) ? Integer.parseInt(args[0]) : 1600;
+        Random random = new Random(27);
+        System.out.printf("%-10s %6s %12s %8s %12s %8s  %s%n",
+                "case", "n", "matrix ms", "growth", "assign ms", "growth", "score");
+        double[] previous = null;
+        double[] previousUnrelated = null;
+        int previousN = 0;
+        for (int n = 50; n <= largest; n *= 2) {
+            List<Layer> target = randomLayers(random, n);
+            List<Layer> shuffled = new ArrayList<>(n);
+            for (Layer l : target) {
+                Layer copy = l.copy();
+                copy.move(random.nextInt(11) - 5, random.nextInt(11) - 5);
+                shuffled.add(copy);
+            }
+            Collections.shuffle(shuffled, random);
+            List<Layer> unrelated = randomLayers(random, n);
+
+            double[] a = measure(target, shuffled);
+            double[] b = measure(target, unrelated);
+            print("shuffled", n, a, previous, previousN);
+            print("unrelated", n, b, previousUnrelated, previousN);
+            previous = a;
+            previousUnrelated = b;
+            previousN = n;
+        }
+    }
+
+    // Median milliseconds for the matrix and the solve, and the score of the match found
+    private static double[] measure(List<Layer> target, List<Layer> player) {
+        double[] matrixMs = new double[RUNS];
+        double[] assignMs = new double[RUNS];
+        double score = 0;
+        for (int run = -WARMUP; run < RUNS; run++) {
+            long t0 = System.nanoTime();
+            double[][] cost = ChallengeScorer.costMatrix(target, player);
+            long t1 = System.nanoTime();
+            int[] match = ChallengeScorer.assign(cost);
+            long t2 = System.nanoTime();
+            if (run < 0) continue;
+            matrixMs[run] = (t1 - t0) / 1e6;
+            assignMs[run] = (t2 - t1) / 1e6;
+            double total = 0;
+            for (int i = 0; i < match.length; i++) total += 1.0 - cost[i][match[i]];
+            score = total / Math.max(target.size(), player.size());
+        }
+        Arrays.sort(matrixMs);
+        Arrays.sort(assignMs);
+        return new double[]{matrixMs[RUNS / 2], assignMs[RUNS / 2], score};
+    }
+
+    private static void print(String name, int n, double[] m, double[] previous, int previousN) {
+        System.out.printf("%-10s %6d %12.2f %8s %12.2f %8s  %.3f%n", name, n,
+                m[0], growth(previous == null ? 0 : previous[0], m[0], previousN, n),
+                m[1], growth(previous == null ? 0 : previous[1], m[1], previousN, n), m[2]);
+    }
+
+    // The exponent k in time ~ n^k between two sizes
+    private static String growth(double before, double after, int n0, int n1) {
+        if (before <= 0 || after <= 0) return "-";
+        return String.format("n^%.2f", Math.log(after / before) / Math.log(n1 / (double) n0));
+    }
+
+    private static List<Layer> randomLayers(Random random, int n) {
+        BlendMode[] modes = BlendMode.values();
+        List<Layer> layers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            layers.add(new Layer(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)), 1f,
+                    modes[random.nextInt(modes.length)],
+                    new Rectangle(random.nextInt(760), random.nextInt(560), 10 + random.nextInt(200), 10 + random.nextInt(200))));
+        }
+        return layers;
+    }
+}
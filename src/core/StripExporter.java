@@ -0,0 +1,190 @@
+package core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * StripExporter saves a drawing as a PNG of any size, for example a
+ * 20000x20000 poster, without ever holding the whole image in memory.
+ *
+ * The image is rendered in horizontal strips (Renderer.renderStrip) on a
+ * pool of threads, one per core. Strips are written in order as soon as
+ * they are done and then dropped, and only a few strips are rendered ahead
+ * of the writer, so memory use depends on the width and the number of
+ * cores but not on the height.
+ *
+ * The PNG is written by a small encoder here instead of ImageIO, which
+ * would want the whole image at once. Every row uses the "Up" filter,
+ * which turns the flat areas of rectangle layers into runs of zeros that
+ * compress very well. The background is white, so the image has no alpha.
+ */
+public class StripExporter {
+    // About 8 MB of pixels per strip
+    private static final int STRIP_PIXELS = 1 << 21;
+    // Most bytes put in one IDAT chunk
+    private static final int CHUNK_BYTES = 1 << 16;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private StripExporter() {}
+
+    /**
+     * Renders the layers at the given size and saves them as a PNG.
+     *
+     * @param layers the layers to export. Rendered on other threads, so pass
+     *               copies if they may change in the meantime
+     * @param width  width of the image in pixels
+     * @param height height of the image in pixels
+     * @param file   the PNG file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void exportPng(List<Layer> layers, int width, int height, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            writePng(layers, width, height, out, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Renders the layers at the given size and writes them to the stream as
+     * a PNG. The stream is not closed.
+     *
+     * @param threads how many strips are rendered at the same time
+     */
+    static void writePng(List<Layer> layers, int width, int height, OutputStream out, int threads) throws IOException {
+        if (width < 1 || height < 1) throw new IllegalArgumentException("Image must be at least 1x1");
+        int stripRows = Math.max(1, Math.min(height, STRIP_PIXELS / width));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "export-strip");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream ihdr = new DataOutputStream(header);
+            ihdr.writeInt(width);
+            ihdr.writeInt(height);
+            ihdr.write(new byte[]{8, 2, 0, 0, 0}); // 8 bits per channel, RGB, no interlace
+            writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream idat = new DeflaterOutputStream(new ChunkStream(data), deflater, CHUNK_BYTES)) {
+                // Strips rendering or waiting to be written, in order; a few more than the
+                // threads so the pool never waits for the writer
+                ArrayDeque<Future<BufferedImage>> pending = new ArrayDeque<>();
+                int next = 0;
+                byte[] row = new byte[1 + width * 3];
+                byte[] previous = new byte[row.length];
+                while (next < height || !pending.isEmpty()) {
+                    while (next < height && pending.size() < threads + 1) {
+                        int y = next;
+                        int rows = Math.min(stripRows, height - y);
+                        pending.add(pool.submit(() -> Renderer.renderStrip(layers, width, height, y, rows)));
+                        next += rows;
+                    }
+                    BufferedImage strip = await(pending.poll());
+                    int[] pixels = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+                    for (int y = 0; y < strip.getHeight(); y++) {
+                        encodeRow(pixels, y * width, width, row, previous);
+                        idat.write(row);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            writeChunk(data, "IEND", new byte[0], 0);
+            data.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Turns one row of opaque ARGB pixels into a PNG row with the Up filter. previous holds
+    // the unfiltered bytes of the row above and is updated to this row's for the next call
+    private static void encodeRow(int[] pixels, int offset, int width, byte[] row, byte[] previous) {
+        row[0] = 2; // Up
+        for (int x = 0; x < width; x++) {
+            int p = pixels[offset + x];
+            int i = 1 + x * 3;
+            row[i] = (byte) (p >> 16);
+            row[i + 1] = (byte) (p >> 8);
+            row[i + 2] = (byte) p;
+        }
+        for (int i = 1; i < row.length; i++) {
+            byte raw = row[i];
+            row[i] = (byte) (raw - previous[i]);
+            previous[i] = raw;
+        }
+    }
+
+    private static BufferedImage await(Future<BufferedImage> strip) throws IOException {
+        try {
+            return strip.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not render strip", e.getCause());
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Cuts the compressed stream into IDAT chunks
+    private static class ChunkStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[CHUNK_BYTES];
+        private int size = 0;
+
+        ChunkStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) flushChunk();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) flushChunk();
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (size == 0) return;
+            writeChunk(out, "IDAT", buffer, size);
+            size = 0;
+        }
+
+        // Called once by the DeflaterOutputStream when it finishes; the PNG stream itself stays open
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package core;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+
+/**
+ * ThumbnailCache makes small preview images of saved documents and
+ * challenges for the DocumentBrowser, and keeps them on disk so each
+ * document only has to be rendered once.
+ *
+ * Thumbnails are stored as PNG files named after the SHA-256 hash of the
+ * document's contents. Two copies of the same drawing share one thumbnail,
+ * and editing a document gives it a new hash, so an old thumbnail is never
+ * shown for changed contents.
+ *
+ * To avoid reading every document just to hash it, an index remembers the
+ * hash of each file together with its size and last-modified time. While
+ * those are unchanged the thumbnail is found without opening the document
+ * at all, which keeps browsing a big folder fast after the first visit.
+ * Call saveIndex() to write the index back to disk.
+ *
+ * All methods are safe to call from background threads.
+ */
+public class ThumbnailCache {
+    /** Size of a thumbnail in pixels, the canvas scaled down by 5. */
+    public static final int WIDTH = Renderer.WIDTH / 5;
+    public static final int HEIGHT = Renderer.HEIGHT / 5;
+
+    private static final String INDEX_FILE = "index.properties";
+
+    private static File directory = new File(System.getProperty("user.home"), ".spectral-layers/thumbnails");
+    // canonical path -> "size:lastModified:hash", guarded by the class lock
+    private static Properties index;
+    private static boolean indexChanged = false;
+
+    private ThumbnailCache() {}
+
+    /**
+     * Changes where thumbnails are stored. The default is
+     * ~/.spectral-layers/thumbnails.
+     *
+     * @param dir the folder to use, created when needed
+     */
+    public static synchronized void setDirectory(File dir) {
+        directory = dir;
+        index = null;
+        indexChanged = false;
+    }
+
+    /**
+     * Returns the thumbnail of a document, rendering and storing it first
+     * if it is not in the cache yet.
+     *
+     * @param file a saved document or challenge
+     * @return the thumbnail, WIDTH x HEIGHT pixels
+     * @throws IOException if the document cannot be read or parsed
+     */
+    public static BufferedImage get(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        String stamp = file.length() + ":" + file.lastModified();
+
+        // Fast path: the file is unchanged since we last hashed it
+        String hash = knownHash(key, stamp);
+        if (hash != null) {
+            BufferedImage cached = readThumbnail(hash);
+            if (cached != null) return cached;
+        }
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        hash = sha256(data);
+        remember(key, stamp, hash);
+        BufferedImage cached = readThumbnail(hash);
+        if (cached != null) return cached;
+
+        BufferedImage thumbnail = render(FileHandler.parseLayers(new String(data, StandardCharsets.UTF_8)));
+        writeThumbnail(hash, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Writes the file-to-hash index to disk if it changed. Worth calling when
+     * a browser window closes, so the next visit can skip hashing.
+     */
+    public static synchronized void saveIndex() {
+        if (!indexChanged) return;
+        try {
+            directory.mkdirs();
+            File tmp = File.createTempFile("index", ".tmp", directory);
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                index.store(out, "Spectral Layers thumbnail index");
+            }
+            Files.move(tmp.toPath(), new File(directory, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            indexChanged = false;
+        } catch (IOException e) {
+            e.printStackTrace(); // the index is only a speed-up, so losing it is harmless
+        }
+    }
+
+    private static synchronized String knownHash(String key, String stamp) {
+        String entry = loadIndex().getProperty(key);
+        if (entry == null || !entry.startsWith(stamp + ":")) return null;
+        return entry.substring(stamp.length() + 1);
+    }
+    private static synchronized void remember(String key, String stamp, String hash) {
+        loadIndex().setProperty(key, stamp + ":" + hash);
+        indexChanged = true;
+    }
+    private static Properties loadIndex() {
+        if (index == null) {
+            index = new Properties();
+            File file = new File(directory, INDEX_FILE);
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    index.load(in);
+                } catch (IOException e) {
+                    e.printStackTrace(); // start over with an empty index
+                }
+            }
+        }
+        return index;
+    }
+
+    // Low resolution render on an opaque image, so the PNG needs no alpha
+    private static BufferedImage render(java.util.List<Layer> layers) {
+        BufferedImage rendered = CompositeCache.render(layers, WIDTH, HEIGHT);
+        BufferedImage thumbnail = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.drawImage(rendered, 0, 0, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    private static BufferedImage readThumbnail(String hash) {
+        File file = new File(directory, hash + ".png");
+        if (!file.exists()) return null;
+        try {
+            return ImageIO.read(file);
+        } catch (IOException e) {
+            return null; // damaged, it will be rendered and written again
+        }
+    }
+    // Written to a temp file first, so other threads or processes never see half a PNG
+    private static void writeThumbnail(String hash, BufferedImage thumbnail) {
+        try {
+            directory.mkdirs();
+            File tmp = File.createTempFile(hash, ".tmp", directory);
+            ImageIO.write(thumbnail, "png", tmp);
+            Files.move(tmp.toPath(), new File(directory, hash + ".png").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace(); // the thumbnail is still returned, just not kept
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package core;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.File;
+
+/**
+ * The TimelinePanel is the strip under the canvas for animating layers.
+ *
+ * It lets the user:
+ * - Pick a time in seconds; the canvas shows the animation at that time
+ * - Store the selected layers' current position, size, color and opacity
+ *   as a keyframe at that time, or clear their keyframes
+ * - Play the animation in a loop, and stop it
+ * - Export every frame as a numbered PNG into a folder
+ *
+ * After playback stops it shows how long frames took to render.
+ */
+public class TimelinePanel extends JPanel {
+    private static final int EXPORT_FPS = 30;
+
+    /**
+     * Creates the timeline controls for the given canvas.
+     *
+     * @param canvas the canvas whose layers are animated
+     */
+    public TimelinePanel(Main canvas) {
+        Timeline timeline = canvas.getTimeline();
+        setLayout(new FlowLayout(FlowLayout.LEFT, 8, 4));
+
+        add(new JLabel("Time (s)"));
+        JSpinner timeSpinner = new JSpinner(new SpinnerNumberModel(0.0, 0.0, 600.0, 0.1));
+        timeSpinner.addChangeListener(e -> canvas.showTime((double) timeSpinner.getValue()));
+        add(timeSpinner);
+
+        JLabel status = new JLabel(" ");
+
+        JButton keyButton = new JButton("Set Keyframe");
+        keyButton.addActionListener(e -> {
+            timeline.setKeyframeOnSelection((double) timeSpinner.getValue());
+            status.setText(String.format("Animation is %.1f s long", timeline.getDuration()));
+        });
+        add(keyButton);
+
+        JButton clearButton = new JButton("Clear Keyframes");
+        clearButton.addActionListener(e -> {
+            timeline.clearKeyframesOfSelection();
+            canvas.repaint();
+        });
+        add(clearButton);
+
+        JButton playButton = new JButton("Play");
+        playButton.addActionListener(e -> {
+            // Clicking the canvas also stops playback, so go by what the button says
+            if (playButton.getText().equals("Stop")) {
+                canvas.stopPlayback();
+                LatencyHistogram times = timeline.getFrameTimes();
+                status.setText(String.format("%d frames, p50 %d ms, p95 %d ms, p99 %d ms", times.count(),
+                        times.percentile(0.50), times.percentile(0.95), times.percentile(0.99)));
+            } else if (timeline.getDuration() > 0) {
+                canvas.play();
+            } else {
+                status.setText("Set keyframes at two different times first");
+            }
+            playButton.setText(canvas.isPlaying() ? "Stop" : "Play");
+        });
+        add(playButton);
+
+        // Frames are rendered in the background from a copy, so editing can go on meanwhile
+        JButton exportButton = new JButton("Export Frames");
+        exportButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            File folder = chooser.getSelectedFile();
+            Timeline.FrameExport export = timeline.exportFrames(folder, EXPORT_FPS, Renderer.WIDTH, Renderer.HEIGHT);
+            exportButton.setEnabled(false);
+            new SwingWorker<Integer, Void>() {
+                @Override
+                protected Integer doInBackground() throws Exception {
+                    return export.run();
+                }
+
+                @Override
+                protected void done() {
+                    exportButton.setEnabled(true);
+                    try {
+                        status.setText(get() + " frames exported");
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        JOptionPane.showMessageDialog(TimelinePanel.this, "Error exporting frames: " + ex.getMessage());
+                    }
+                }
+            }.execute();
+        });
+        add(exportButton);
+        add(status);
+    }
+}
@@ -6,6 +6,7 @@ import java.awt.event.ActionEvent;
 import javax.swing.*;
 import java.awt.event.*;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -16,8 +17,13 @@ import java.util.List;
  * - Set the width and height of a layer, by typing
  * - Choose a blend mode (Add, Multiply, Subtract)
  * - Add a new layer to the canvas
+ * - Apply the chosen color and blend mode to all selected layers
  * - Save the current artwork to a file
+ * - Export it as a PNG of any size, up to poster prints
  * - Load artwork from a file
+ * - Import a CSV of up to millions of rectangles as a single layer
+ * - Browse a folder of documents as thumbnails
+ * - Host or join a collaboration session to draw together with others
  * - Load a challenge file for the "Test Your Drawing Skills" mode
  *
  * It also communicates with the provided LayerManager to update or add layers,
@@ -29,6 +35,9 @@ public class ToolbarPanel extends JPanel {
     private final JComboBox<BlendMode> modeSelector;
     private final JSpinner widthSpinner;
     private final JSpinner heightSpinner;
+    // The current collaboration session, null when not in one
+    private CollabServer collabServer;
+    private CollabClient collabClient;
     /**
      * Creates the toolbar panel with all editing controls.
      *
@@ -107,6 +116,15 @@ public class ToolbarPanel extends JPanel {
         });
         add(addButton);
 
+        // Apply the chosen color and blend mode to every selected layer at once
+        JButton applyButton = new JButton("Apply to Selection");
+        applyButton.setAlignmentX(Component.CENTER_ALIGNMENT);
+        applyButton.addActionListener(e -> {
+            manager.restyleSelectedLayers(previewPanel.getBackground(), (BlendMode) modeSelector.getSelectedItem());
+            repaintCallback.run();
+        });
+        add(applyButton);
+
         // FILE operations for save file
         add(Box.createVerticalStrut(10));
 
@@ -126,6 +144,51 @@ public class ToolbarPanel extends JPanel {
         });
         add(saveButton);
 
+        // Export renders in strips on background threads, so even huge sizes fit in memory
+        JButton exportButton = new JButton("Export PNG");
+        exportButton.addActionListener(e -> {
+            String size = JOptionPane.showInputDialog(this, "Image size (width x height)",
+                    Renderer.WIDTH + "x" + Renderer.HEIGHT);
+            if (size == null || size.isBlank()) return;
+            int width, height;
+            try {
+                String[] parts = size.toLowerCase().split("x");
+                width = Integer.parseInt(parts[0].trim());
+                height = Integer.parseInt(parts[1].trim());
+                if (width < 1 || height < 1) throw new NumberFormatException();
+            } catch (RuntimeException ex) {
+                JOptionPane.showMessageDialog(this, "Enter a size like 4000x3000.");
+                return;
+            }
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            File file = chooser.getSelectedFile();
+            // Snapshot the layers so editing can go on while the export runs
+            List<Layer> layers = new ArrayList<>();
+            for (Layer l : manager.getLayers()) layers.add(l.copy());
+            exportButton.setEnabled(false);
+            new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    StripExporter.exportPng(layers, width, height, file);
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    exportButton.setEnabled(true);
+                    try {
+                        get();
+                        JOptionPane.showMessageDialog(ToolbarPanel.this, "Image exported successfully!");
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        JOptionPane.showMessageDialog(ToolbarPanel.this, "Error exporting image: " + ex.getMessage());
+                    }
+                }
+            }.execute();
+        });
+        add(exportButton);
+
         JButton loadButton = new JButton("Load File");
         loadButton.addActionListener(e -> {
             JFileChooser chooser = new JFileChooser();
@@ -141,17 +204,89 @@ public class ToolbarPanel extends JPanel {
             }
         });
         add(loadButton);
+
+        // Parsing a big CSV takes a moment, so it happens in the background
+        JButton importButton = new JButton("Import Rectangles");
+        importButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            File file = chooser.getSelectedFile();
+            importButton.setEnabled(false);
+            new SwingWorker<RectBatchLayer, Void>() {
+                @Override
+                protected RectBatchLayer doInBackground() throws Exception {
+                    return FileHandler.importRectangles(file);
+                }
+
+                @Override
+                protected void done() {
+                    importButton.setEnabled(true);
+                    try {
+                        manager.addLayer(get());
+                        repaintCallback.run();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        JOptionPane.showMessageDialog(ToolbarPanel.this, "Error importing rectangles: " + ex.getMessage());
+                    }
+                }
+            }.execute();
+        });
+        add(importButton);
+
+        // Gallery of every document in a folder, with cached thumbnails
+        JButton browseButton = new JButton("Browse Folder");
+        browseButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                new DocumentBrowser(chooser.getSelectedFile(), manager, repaintCallback);
+            }
+        });
+        add(browseButton);
+
+        // Collaboration: host shares the current drawing on this machine, join connects to a host
+        add(Box.createVerticalStrut(10));
+        JButton hostButton = new JButton("Host Session");
+        hostButton.addActionListener(e -> {
+            if (leaveSessionFirst()) return;
+            try {
+                collabServer = new CollabServer(CollabServer.DEFAULT_PORT, manager.getLayers());
+                collabClient = CollabClient.connect("localhost", collabServer.getPort(), manager, repaintCallback);
+                JOptionPane.showMessageDialog(this, "Hosting on port " + collabServer.getPort() + ".");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                leaveSession();
+                JOptionPane.showMessageDialog(this, "Error starting session: " + ex.getMessage());
+            }
+        });
+        add(hostButton);
+
+        JButton joinButton = new JButton("Join Session");
+        joinButton.addActionListener(e -> {
+            if (leaveSessionFirst()) return;
+            String address = JOptionPane.showInputDialog(this, "Host and port", "localhost:" + CollabServer.DEFAULT_PORT);
+            if (address == null || address.isBlank()) return;
+            try {
+                String[] parts = address.trim().split(":");
+                int port = (parts.length > 1) ? Integer.parseInt(parts[1]) : CollabServer.DEFAULT_PORT;
+                collabClient = CollabClient.connect(parts[0], port, manager, repaintCallback);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Error joining session: " + ex.getMessage());
+            }
+        });
+        add(joinButton);
         JButton testButton = new JButton("Test your Drawing Skills");
         testButton.addActionListener(e -> {
             JFileChooser chooser = new JFileChooser();
             if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
                 File file = chooser.getSelectedFile();
                 try {
-                    // load the challenge layers
-                    List<Layer> challengeLayers = FileHandler.loadChallenge(file);
+                    // load and analyze the challenge, reusing the cached copy if the file is unchanged
+                    ChallengeAnalysis challenge = ChallengeCache.analyze(file);
 
                     // show challenge window
-                    new ChallengeWindow(challengeLayers, manager);
+                    new ChallengeWindow(challenge, manager);
                 } catch (Exception ex) {
                     ex.printStackTrace();
                     JOptionPane.showMessageDialog(this, "Error loading challenge: " + ex.getMessage());
@@ -162,4 +297,28 @@ public class ToolbarPanel extends JPanel {
         // Stretch Fill to make the right side not an empty void
         add(Box.createVerticalGlue());
     }
+
+    // If a session is running, offers to leave it. Returns true if the user stayed in it
+    private boolean leaveSessionFirst() {
+        if (collabClient == null || collabClient.isClosed()) {
+            leaveSession();
+            return false;
+        }
+        int answer = JOptionPane.showConfirmDialog(this, "Leave the current session?", "Session", JOptionPane.YES_NO_OPTION);
+        if (answer != JOptionPane.YES_OPTION) return true;
+        leaveSession();
+        return false;
+    }
+    private void leaveSession() {
+        if (collabClient != null) collabClient.close();
+        collabClient = null;
+        if (collabServer != null) {
+            try {
+                collabServer.close();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        collabServer = null;
+    }
 }
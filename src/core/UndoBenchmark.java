@@ -0,0 +1,138 @@
+package core;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * UndoBenchmark checks that recording, undoing and redoing an action costs
+ * as much as the change, not as much as the document, which is what
+ * LayerManager's LayerEdit history promises.
+ *
+ * For each document size n it loads n layers into a LayerManager, selects
+ * k of them and times:
+ *  - record: a drag of the k layers, from beginGesture() to endGesture()
+ *  - undo:   taking that drag back
+ *  - redo:   doing it again
+ * Each figure is the median over several runs of the average over many
+ * repetitions, in microseconds. Every line also shows the growth between
+ * this size and the previous one: the exponent e in time ~ size^e. Against
+ * the document size e should stay near 0; against the change size near 1.
+ *
+ * Usage:
+ *   java core.UndoBenchmark [largest document, default 64000]
+ * Documents grow 4x from 1000 layers up to the largest, with k = 1 and
+ * k = 100; then the change grows 10x from 1 to 1000 layers in the largest
+ * document.
+ */
+public class UndoBenchmark {
+    // Runs per case before measuring, so the JIT has compiled the loops
+    private static final int WARMUP = 3;
+    // Measured runs per case; the median counts
+    private static final int RUNS = 5;
+    // Repetitions averaged within one run, so tiny actions are measurable
+    private static final int REPEATS = 200;
+    // The first this many layers are thin strips that selectLayersIn can pick k of
+    private static final int STRIPS = 1000;
+
+    private UndoBenchmark() {}
+
+    /**
+     * Runs both sweeps and prints one line per case.
+     *
+     * @param args [largest document]
+     */
+    public static void main(String[] args) {
+        int largest = (args.length > 0) ? Integer.parseInt(args[0]) : 64000;
+        System.out.printf("%-9s %8s %6s %12s %8s %12s %8s %12s %8s%n",
+                "sweep", "layers", "change", "record us", "growth", "undo us", "growth", "redo us", "growth");
+        for (int k : new int[]{1, 100}) {
+            double[] previous = null;
+            int previousN = 0;
+            for (int n = STRIPS; n <= largest; n *= 4) {
+                double[] m = measure(document(n), k);
+                print("document", n, k, m, previous, previousN, n);
+                previous = m;
+                previousN = n;
+            }
+        }
+        List<Layer> document = document(Math.max(largest, STRIPS));
+        double[] previous = null;
+        int previousK = 0;
+        for (int k = 1; k <= STRIPS; k *= 10) {
+            double[] m = measure(document, k);
+            print("change", document.size(), k, m, previous, previousK, k);
+            previous = m;
+            previousK = k;
+        }
+    }
+
+    // Median microseconds to record, undo and redo a drag of k layers
+    private static double[] measure(List<Layer> document, int k) {
+        LayerManager manager = new LayerManager();
+        manager.setLayers(document);
+        Rectangle strips = new Rectangle(0, 0, 10, k);
+        double[] record = new double[RUNS];
+        double[] undo = new double[RUNS];
+        double[] redo = new double[RUNS];
+        for (int run = -WARMUP; run < RUNS; run++) {
+            long recordNs = 0, undoNs = 0, redoNs = 0;
+            for (int i = 0; i < REPEATS; i++) {
+                // Undo clears the selection, so pick the layers again each time
+                manager.selectLayersIn(strips, false);
+                long t0 = System.nanoTime();
+                manager.beginGesture();
+                manager.moveSelectedLayer(3, 0);
+                manager.endGesture();
+                long t1 = System.nanoTime();
+                manager.undo();
+                long t2 = System.nanoTime();
+                manager.redo();
+                long t3 = System.nanoTime();
+                // Back to the start, so the history stays one step deep
+                manager.undo();
+                recordNs += t1 - t0;
+                undoNs += t2 - t1;
+                redoNs += t3 - t2;
+            }
+            if (run < 0) continue;
+            record[run] = recordNs / 1e3 / REPEATS;
+            undo[run] = undoNs / 1e3 / REPEATS;
+            redo[run] = redoNs / 1e3 / REPEATS;
+        }
+        Arrays.sort(record);
+        Arrays.sort(undo);
+        Arrays.sort(redo);
+        return new double[]{record[RUNS / 2], undo[RUNS / 2], redo[RUNS / 2]};
+    }
+
+    private static void print(String sweep, int n, int k, double[] m, double[] previous, int size0, int size1) {
+        System.out.printf("%-9s %8d %6d %12.2f %8s %12.2f %8s %12.2f %8s%n", sweep, n, k,
+                m[0], growth(previous == null ? 0 : previous[0], m[0], size0, size1),
+                m[1], growth(previous == null ? 0 : previous[1], m[1], size0, size1),
+                m[2], growth(previous == null ? 0 : previous[2], m[2], size0, size1));
+    }
+
+    // The exponent e in time ~ size^e between two sizes
+    private static String growth(double before, double after, int size0, int size1) {
+        if (before <= 0 || after <= 0) return "-";
+        return String.format("^%.2f", Math.log(after / before) / Math.log(size1 / (double) size0));
+    }
+
+    // n layers: STRIPS one-pixel-high strips stacked at the top left, the rest scattered to the right of them
+    private static List<Layer> document(int n) {
+        Random random = new Random(40);
+        BlendMode[] modes = BlendMode.values();
+        List<Layer> layers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Color color = new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            BlendMode mode = modes[random.nextInt(modes.length)];
+            Rectangle shape = (i < STRIPS) ? new Rectangle(0, i, 10, 1)
+                    : new Rectangle(20 + random.nextInt(700), random.nextInt(560), 10 + random.nextInt(200), 10 + random.nextInt(200));
+            layers.add(new Layer(color, 1f, mode, shape));
+        }
+        return layers;
+    }
+}
@@ -0,0 +1,242 @@
+package core;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * UndoHistory is a stack of LayerEdits, used by LayerManager for both undo
+ * and redo. It works like a Stack but keeps its memory use bounded so long
+ * sessions don't run out of heap.
+ *
+ * It has two tiers:
+ *  - The most recent edits stay in memory, up to memoryBudget bytes
+ *    (estimated). Undoing these is instant.
+ *  - Older edits are compressed and written to a temporary file. Undoing
+ *    past the in-memory tier reads them back one at a time.
+ *
+ * The file is itself a stack: edits are appended in the order they leave
+ * memory, and popped from the end. When the file grows past diskBudget
+ * bytes the oldest half of it is dropped, so the file stays bounded too.
+ */
+public class UndoHistory {
+    /** Default memory budget for in-memory edits, 16 MB. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    /** Default size limit for the spill file, 256 MB. */
+    public static final long DEFAULT_DISK_BUDGET = 256L << 20;
+
+    // Rough heap cost of one plain layer: object, Rectangle, Color and list slot
+    private static final int LAYER_BYTES = 120;
+
+    private final Deque<LayerEdit> recent = new ArrayDeque<>();
+    private final Deque<Long> recentSizes = new ArrayDeque<>();
+    private long memoryUsed;
+    private long memoryBudget;
+    private final long diskBudget;
+
+    // Spill file and where each spilled edit starts in it, oldest first
+    private RandomAccessFile spill;
+    private File spillFile;
+    private final List<Long> offsets = new ArrayList<>();
+
+    /**
+     * Creates a history with the default budgets.
+     */
+    public UndoHistory() {
+        this(DEFAULT_MEMORY_BUDGET, DEFAULT_DISK_BUDGET);
+    }
+
+    /**
+     * Creates a history with the given budgets.
+     *
+     * @param memoryBudget bytes of edits to keep in memory before spilling
+     * @param diskBudget   size the spill file may reach before its oldest half is dropped
+     */
+    public UndoHistory(long memoryBudget, long diskBudget) {
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+    }
+
+    /**
+     * Changes how much memory in-memory edits may use. Lowering it spills
+     * older edits right away.
+     *
+     * @param bytes the new budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        trimMemory();
+    }
+
+    /**
+     * Adds an edit as the newest entry.
+     *
+     * @param edit the edit to remember. It must not be changed afterwards
+     */
+    public void push(LayerEdit edit) {
+        long size = estimate(edit);
+        recent.addLast(edit);
+        recentSizes.addLast(size);
+        memoryUsed += size;
+        trimMemory();
+    }
+
+    /**
+     * Removes and returns the newest edit.
+     *
+     * @return the edit, or null if the history is empty
+     */
+    public LayerEdit pop() {
+        if (!recent.isEmpty()) {
+            memoryUsed -= recentSizes.removeLast();
+            return recent.removeLast();
+        }
+        if (offsets.isEmpty()) return null;
+        try {
+            long start = offsets.remove(offsets.size() - 1);
+            byte[] data = new byte[(int) (spill.length() - start)];
+            spill.seek(start);
+            spill.readFully(data);
+            spill.setLength(start);
+            return read(data);
+        } catch (IOException e) {
+            // The spilled tail can't be read back, so forget it rather than fail the undo
+            e.printStackTrace();
+            offsets.clear();
+            return null;
+        }
+    }
+
+    /**
+     * @return true if there is nothing to undo
+     */
+    public boolean isEmpty() {
+        return recent.isEmpty() && offsets.isEmpty();
+    }
+
+    /**
+     * @return the number of edits in memory and on disk
+     */
+    public int size() {
+        return recent.size() + offsets.size();
+    }
+
+    /**
+     * Drops every edit and deletes the spill file.
+     */
+    public void clear() {
+        if (isEmpty()) return;
+        recent.clear();
+        recentSizes.clear();
+        memoryUsed = 0;
+        offsets.clear();
+        closeSpill();
+    }
+
+    // Moves the oldest in-memory edits to disk until memory is within budget.
+    // The newest edit always stays in memory so the next undo is instant.
+    private void trimMemory() {
+        while (memoryUsed > memoryBudget && recent.size() > 1) {
+            LayerEdit oldest = recent.removeFirst();
+            memoryUsed -= recentSizes.removeFirst();
+            try {
+                spillToDisk(oldest);
+            } catch (IOException e) {
+                // Without a working spill file the oldest edit is simply lost
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void spillToDisk(LayerEdit edit) throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("spectral-undo", ".bin");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        byte[] data = write(edit);
+        if (spill.length() + data.length > diskBudget && offsets.size() > 1) dropOldestHalf();
+        long start = spill.length();
+        spill.seek(start);
+        spill.write(data);
+        offsets.add(start);
+    }
+
+    // Shifts the newer half of the spill file to the front, forgetting the older half
+    private void dropOldestHalf() throws IOException {
+        int keepFrom = offsets.size() / 2;
+        long cut = offsets.get(keepFrom);
+        long length = spill.length();
+        byte[] buffer = new byte[64 * 1024];
+        for (long pos = cut; pos < length; pos += buffer.length) {
+            int n = (int) Math.min(buffer.length, length - pos);
+            spill.seek(pos);
+            spill.readFully(buffer, 0, n);
+            spill.seek(pos - cut);
+            spill.write(buffer, 0, n);
+        }
+        spill.setLength(length - cut);
+        List<Long> kept = new ArrayList<>();
+        for (int i = keepFrom; i < offsets.size(); i++) kept.add(offsets.get(i) - cut);
+        offsets.clear();
+        offsets.addAll(kept);
+    }
+
+    private void closeSpill() {
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillFile.delete();
+        spill = null;
+        spillFile = null;
+    }
+
+    // Approximate heap bytes held by an edit
+    private static long estimate(LayerEdit edit) {
+        long bytes = 16;
+        for (LayerEdit.Splice s : edit.splices()) bytes += estimate(s.removed()) + estimate(s.inserted());
+        return bytes;
+    }
+    private static long estimate(List<Layer> layers) {
+        long bytes = 16;
+        for (Layer l : layers) {
+            bytes += LAYER_BYTES;
+            if (l instanceof LayerGroup group) bytes += estimate(group.getChildren());
+            else if (l instanceof RasterLayer raster) bytes += 4L * raster.getImage().getWidth() * raster.getImage().getHeight();
+        }
+        return bytes;
+    }
+
+    // Compact binary form: each splice is its index and two layer lists in LayerCodec form, all deflated
+    private static byte[] write(LayerEdit edit) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(edit.splices().size());
+            for (LayerEdit.Splice s : edit.splices()) {
+                out.writeInt(s.index());
+                LayerCodec.writeLayers(out, s.removed());
+                LayerCodec.writeLayers(out, s.inserted());
+            }
+        }
+        return bytes.toByteArray();
+    }
+    private static LayerEdit read(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            LayerEdit edit = new LayerEdit();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                List<Layer> removed = LayerCodec.readLayers(in);
+                edit.add(index, removed, LayerCodec.readLayers(in));
+            }
+            return edit;
+        }
+    }
+}
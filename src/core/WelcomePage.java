@@ -1,16 +1,27 @@
 package core;
 
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.image.BufferedImage;
+import java.net.URL;
 
 /**
  * The WelcomePage is the first page displayed when the application starts.
  * It provides an overview of the Spectral Layers tool, including a basic
  * guide and game description. Users may navigate between tabs and press the
  * "Get Started" button to begin using the application.
+ *
+ * The header image is read from the classpath and decoded and scaled on a
+ * background thread, so the dialog can open right away. A placeholder is
+ * shown until the image is ready.
  */
 public class WelcomePage extends JDialog {
+    // Classpath location of the header image, copied to the output folder from src/images
+    private static final String HEADER_IMAGE = "/images/Front_Page.png";
+    private static final int IMAGE_SCALE = 6;
+
     public WelcomePage(JFrame parent) {
         super(parent, "Welcome to Spectral Layers", true);
         setSize(600, 500);
@@ -36,18 +47,10 @@ public class WelcomePage extends JDialog {
         header.setForeground(new Color(86, 3, 25));
         header.setHorizontalAlignment(SwingConstants.LEFT);
 
-        JLabel headerImage = new JLabel();
-        try {
-            ImageIcon originalIcon = new ImageIcon("src/images/Front_Page.png");
-            int scaledWidth = originalIcon.getIconWidth() / 6;
-            int scaledHeight = originalIcon.getIconHeight() / 6;
-            Image scaledImage = originalIcon.getImage().getScaledInstance(scaledWidth, scaledHeight, Image.SCALE_SMOOTH);
-            headerImage.setIcon(new ImageIcon(scaledImage));
-        } catch (Exception e) {
-            headerImage.setText("Logo");
-            headerImage.setForeground(Color.GRAY);
-        }
+        JLabel headerImage = new JLabel("Logo");
+        headerImage.setForeground(Color.GRAY);
         headerImage.setHorizontalAlignment(SwingConstants.RIGHT);
+        loadHeaderImage(headerImage);
 
         headerPanel.add(header, BorderLayout.CENTER);
         headerPanel.add(headerImage, BorderLayout.EAST);
@@ -69,6 +72,55 @@ public class WelcomePage extends JDialog {
         add(buttonPanel, BorderLayout.SOUTH);
     }
 
+    /**
+     * Decodes and scales the header image on a background thread, then swaps
+     * it into the label on the EDT. If the image can't be read the label
+     * keeps its "Logo" placeholder.
+     *
+     * @param label the label showing the placeholder
+     */
+    private void loadHeaderImage(JLabel label) {
+        new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                URL url = WelcomePage.class.getResource(HEADER_IMAGE);
+                if (url == null) return null;
+                BufferedImage original = ImageIO.read(url);
+                if (original == null) return null;
+                int w = Math.max(1, original.getWidth() / IMAGE_SCALE);
+                int h = Math.max(1, original.getHeight() / IMAGE_SCALE);
+                // Halve the image a step at a time so the result stays smooth, like SCALE_SMOOTH
+                BufferedImage scaled = original;
+                do {
+                    int stepW = Math.max(w, scaled.getWidth() / 2);
+                    int stepH = Math.max(h, scaled.getHeight() / 2);
+                    scaled = scaleTo(scaled, stepW, stepH);
+                } while (scaled.getWidth() > w || scaled.getHeight() > h);
+                return scaled;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BufferedImage image = get();
+                    if (image == null) return;
+                    label.setText(null);
+                    label.setIcon(new ImageIcon(image));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+    private static BufferedImage scaleTo(BufferedImage image, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
     /**
      * The createQuickStartPanel function builds the intro tab, which provides a description of
      * features the application offers. The content is wrapped in